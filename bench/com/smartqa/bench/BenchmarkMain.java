@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.bench;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>
+ * Run SmartQA micro benchmarks, no browser needed.<br/>
+ * Compile <b>bench</b> folder with SmartQA classes and JMH (core and annotation processor) on classpath, then:<br/>
+ * <b>java com.smartqa.bench.BenchmarkMain [jmh options]</b>
+ * </p>
+ *
+ * <p>
+ * Result is written in JSON to bench/result/&lt;time&gt;.json, so runs before and after a change can be compared.
+ * Any JMH command line option is accepted, for example a benchmark name regex.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws Exception{
+		File folder = new File("bench/result");
+		if(!folder.isDirectory() && !folder.mkdirs())
+			throw new IllegalStateException("can't create "+folder);
+
+		String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.resultFormat(ResultFormatType.JSON)
+				.result(new File(folder, name+".json").getPath());
+		if(args.length == 0)
+			options.include("com\\.smartqa\\.bench\\..*Benchmark");
+
+		new Runner(options.build()).run();
+	}
+}
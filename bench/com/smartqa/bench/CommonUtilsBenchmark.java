@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.smartqa.utils.CommonUtils;
+
+/**
+ * <p>
+ * Benchmark string parsing helpers.<br/>
+ * Payload is the toString of performance.timing, a typical "key=value, ..." string.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommonUtilsBenchmark {
+	private final static String[] TIMING_KEYS = {"navigationStart", "unloadEventStart", "unloadEventEnd",
+		"redirectStart", "redirectEnd", "fetchStart", "domainLookupStart", "domainLookupEnd", "connectStart",
+		"connectEnd", "secureConnectionStart", "requestStart", "responseStart", "responseEnd", "domLoading",
+		"domInteractive", "domContentLoadedEventStart", "domContentLoadedEventEnd", "domComplete",
+		"loadEventStart", "loadEventEnd"};
+
+	private String[] timing;
+	private String pair;
+	private String ranking;
+
+	@Setup
+	public void setup(){
+		StringBuilder buf = new StringBuilder("{");
+		long start = 1350432000000L;
+		for(int i = 0; i < TIMING_KEYS.length; i++){
+			if(i > 0)
+				buf.append(", ");
+			buf.append(TIMING_KEYS[i]).append("=").append(i < 3 ? 0 : start + i * 37);
+		}
+		String payload = buf.append("}").toString();
+		timing = payload.substring(1, payload.length() - 1).split(",");
+		pair = timing[timing.length / 2];
+		ranking = "No.3 Team 45 wins 37 losses, 2.5 games behind";
+	}
+
+	@Benchmark
+	public Map<String, String> buildMap(){
+		return CommonUtils.buildMap(timing);
+	}
+
+	@Benchmark
+	public String[] keyValue(){
+		return CommonUtils.keyValue(pair, "=");
+	}
+
+	@Benchmark
+	public String filterNumber(){
+		return CommonUtils.filterNumber(ranking, 3);
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.smartqa.webdriver.PathController;
+import com.smartqa.webdriver.PathIndex;
+
+/**
+ * <p>
+ * Benchmark path lookup, called by every locate in scenario.<br/>
+ * PathController is a singleton reading -Dsmartqa.path once, so each param set must run in its own fork.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PathControllerBenchmark {
+	@Param({"20", "200"})
+	public int namespaces;
+
+	@Param({"50", "500"})
+	public int keys;
+
+	private File lib;
+	private File indexFile;
+	private PathController controller;
+	private PathIndex index;
+	private String[] namespaceNames;
+	private String[] keyNames;
+	private int cursor = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception{
+		lib = PathLibrary.create(namespaces, keys);
+		System.setProperty("smartqa.path", lib.getPath());
+		indexFile = new File(lib.getPath()+".bench.idx");
+		System.setProperty("smartqa.path.index", indexFile.getPath());
+		controller = PathController.getInstance();
+
+		PathIndex.compile(lib.getPath(), indexFile);
+		index = PathIndex.open(lib.getPath(), indexFile);
+
+		//lookup order spread over the whole library
+		namespaceNames = new String[1024];
+		keyNames = new String[1024];
+		for(int i = 0; i < 1024; i++){
+			namespaceNames[i] = PathLibrary.namespace((i * 7) % namespaces);
+			keyNames[i] = PathLibrary.key((i * 13) % keys);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		FileUtils.deleteQuietly(lib);
+		FileUtils.deleteQuietly(indexFile);
+	}
+
+	@Benchmark
+	public void getPath(Blackhole hole){
+		int i = next();
+		hole.consume(controller.getPath(namespaceNames[i], keyNames[i]));
+	}
+
+	@Benchmark
+	public void getTemplate(Blackhole hole){
+		int i = next();
+		hole.consume(controller.getTemplate(namespaceNames[i], keyNames[i]));
+	}
+
+	@Benchmark
+	public void indexLookup(Blackhole hole){
+		int i = next();
+		hole.consume(index.lookup(namespaceNames[i], keyNames[i]));
+	}
+
+	private int next(){
+		cursor = (cursor + 1) & 1023;
+		return cursor;
+	}
+}
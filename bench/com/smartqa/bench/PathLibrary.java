@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Generate a path library on disk for benchmarks, shaped like real ones:
+ * long absolute xpath, text predicates and some placeholders.
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public abstract class PathLibrary {
+	//fixed seed, so each run benchmarks the same library
+	private final static long SEED = 20121017L;
+
+	/**
+	 * create library folder
+	 *
+	 * @param namespaces - namespace file count
+	 * @param keys - keys in each namespace
+	 * @return library folder
+	 * @throws IOException
+	 */
+	public static File create(int namespaces, int keys) throws IOException{
+		File lib = new File(System.getProperty("java.io.tmpdir"), "smartqa-bench-"+namespaces+"x"+keys+"-"+System.nanoTime());
+		Random random = new Random(SEED);
+		for(int n = 0; n < namespaces; n++){
+			StringBuilder buf = new StringBuilder();
+			for(int k = 0; k < keys; k++)
+				buf.append(key(k)).append(" = ").append(xpath(random)).append("\n");
+			FileUtils.writeStringToFile(new File(lib, namespace(n)+".path"), buf.toString(), "utf-8");
+		}
+
+		return lib;
+	}
+
+	/**
+	 * name of the n-th namespace
+	 */
+	public static String namespace(int n){
+		return "module_"+n;
+	}
+
+	/**
+	 * name of the k-th key
+	 */
+	public static String key(int k){
+		return "element_"+k+"_link";
+	}
+
+	/**
+	 * random xpath, about one of four has placeholders
+	 */
+	private static String xpath(Random random){
+		StringBuilder buf = new StringBuilder("/html/body[@id='body']/div[@id='page']");
+		int depth = 2 + random.nextInt(4);
+		for(int i = 0; i < depth; i++)
+			buf.append("//div[@class='block_").append(random.nextInt(100)).append("']");
+
+		switch(random.nextInt(4)){
+			case 0:
+				buf.append("//a[text()='{0}']");
+				break;
+			case 1:
+				buf.append("//ul[@class='rank']/li[{0}]//a[contains(@href, '{1}')]");
+				break;
+			default:
+				buf.append("//a[text()='link ").append(random.nextInt(1000)).append("']");
+		}
+
+		return buf.toString();
+	}
+}
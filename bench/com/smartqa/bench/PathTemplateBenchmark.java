@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.smartqa.webdriver.PathTemplate;
+
+/**
+ * <p>
+ * Benchmark placeholder expansion used by locateByArgs and should.<br/>
+ * <b>replaceAll</b> is the regex based expansion WebEngine used before path templates, kept as baseline.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PathTemplateBenchmark {
+	@Param({"0", "1", "3"})
+	public int argCount;
+
+	private String xpath;
+	private String[] args;
+	private PathTemplate template;
+
+	@Setup
+	public void setup(){
+		StringBuilder buf = new StringBuilder("/html/body//div[@id='eastrank']//ul[@class='topbdr rankli']");
+		args = new String[argCount];
+		for(int i = 0; i < argCount; i++){
+			buf.append("//li[").append("{").append(i).append("}]");
+			args[i] = "rank item "+i;
+		}
+		xpath = buf.append("//a[contains(@style, 'rank1.gif')]").toString();
+		template = PathTemplate.parse(xpath);
+	}
+
+	@Benchmark
+	public String replaceAll(){
+		String result = xpath;
+		for(int i = 0; i < args.length; i++){
+			String flag = "\\{"+i+"\\}";
+			if(result.contains("{"+i+"}"))
+				result = result.replaceAll(flag, args[i]);
+		}
+		return result;
+	}
+
+	@Benchmark
+	public String expand(){
+		return template.expand(args);
+	}
+
+	@Benchmark
+	public PathTemplate parse(){
+		return PathTemplate.parse(xpath);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Recorder of batch steps, it is the delegate of closure passed to {@link WebEngine#batch(groovy.lang.Closure)}.<br/>
+ * Steps are only recorded here, engine runs fill and select steps between clicks in one script call later,
+ * clicks run as normal actions.
+ * </p>
+ *
+ * <p>
+ * Supported steps:
+ * <ul>
+ * 	<li>fill</li>
+ * 	<li>select</li>
+ * 	<li>click</li>
+ * 	<li>clickByArgs</li>
+ * </ul>
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class BatchAction {
+	private final List<Step> steps = new ArrayList<Step>();
+
+	/**
+	 * record fill step
+	 *
+	 * @param name - name stands for web element
+	 * @param value - fill value
+	 * @return BatchAction
+	 */
+	public BatchAction fill(String name, String value){
+		steps.add(new Step("fill", name, value, new String[]{}));
+		return this;
+	}
+
+	/**
+	 * record select step, select drop down by visible text
+	 *
+	 * @param name - name stands for web element
+	 * @param value - value to select
+	 * @return BatchAction
+	 */
+	public BatchAction select(String name, String value){
+		steps.add(new Step("select", name, value, new String[]{}));
+		return this;
+	}
+
+	/**
+	 * record click step
+	 *
+	 * @param name - name stands for web element
+	 * @return BatchAction
+	 */
+	public BatchAction click(String name){
+		steps.add(new Step("click", name, null, new String[]{}));
+		return this;
+	}
+
+	/**
+	 * record click step with xpath args
+	 *
+	 * @param name - name stands for web element
+	 * @param args - dynamic args to build xpath
+	 * @return BatchAction
+	 */
+	public BatchAction clickByArgs(String name, String... args){
+		steps.add(new Step("click", name, null, args));
+		return this;
+	}
+
+	/**
+	 * recorded steps
+	 *
+	 * @return step list
+	 */
+	List<Step> getSteps(){
+		return steps;
+	}
+
+	/**
+	 * one recorded step
+	 */
+	static class Step{
+		final String action;
+		final String name;
+		final String value;
+		final String[] args;
+
+		Step(String action, String name, String value, String[] args){
+			this.action = action;
+			this.name = name;
+			this.value = value;
+			this.args = args == null ? new String[]{} : args;
+		}
+
+		@Override
+		public String toString(){
+			StringBuilder buf = new StringBuilder(action).append("('").append(name).append("'");
+			if(args.length > 0)
+				buf.append(", ").append(Arrays.toString(args));
+			if(value != null)
+				buf.append(", '").append(value).append("'");
+			return buf.append(")").toString();
+		}
+	}
+}
@@ -16,19 +16,39 @@
  */
 package com.smartqa.engine;
 
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import groovy.lang.Binding;
-import groovy.util.GroovyScriptEngine;
 
 import com.smartqa.exception.SmartQAException;
+import com.smartqa.metrics.ActionMetrics;
+import com.smartqa.metrics.BudgetChecker;
+import com.smartqa.metrics.TimingSeries;
+import com.smartqa.report.EmailReporter;
+import com.smartqa.report.ResultSink;
+import com.smartqa.screenshot.ScreenshotWriter;
 import com.smartqa.utils.CommonUtils;
 import com.smartqa.utils.KeyboardUtils;
 import com.smartqa.utils.WebDriverUtils;
+import com.smartqa.webdriver.Browser;
 import com.smartqa.webdriver.PathController;
 
 /**
@@ -68,6 +88,15 @@ import com.smartqa.webdriver.PathController;
  * </p>
  * 
  * <p>
+ * Scenarios run one by one by default, add -Dsmartqa.workers=N to run them with N parallel workers.<br/>
+ * Each worker owns its web engine and binding, so scenarios never share state.<br/>
+ * Add -Dsmartqa.forks=N to run them in N forked worker JVMs instead, see {@link WorkerPool}.<br/>
+ * Scenarios are ordered by their history of earlier runs, recently failed and longest first, see {@link ScenarioHistory}.<br/>
+ * Scenario scripts are compiled once before running, see {@link ScriptCache}.<br/>
+ * Time spent by each action is printed with scenario, and the slowest steps of all scenarios are logged at last.<br/>
+ * Each scenario is printed and written into result files as soon as it finished, see {@link ResultSink}.<br/>
+ * One digest of the run is mailed at last when mail is configured in smartqa.ini, see {@link EmailReporter}.
+ * </p>
  * 
  * @version 1.0
  * @author antren
@@ -75,45 +104,204 @@ import com.smartqa.webdriver.PathController;
  */
 public class EngineMain {
 	private final static Logger LOG = LogManager.getLogger("EngineMain");
-	private static GroovyScriptEngine scriptEngine;
-	private static Binding context = new Binding();
 	private static PathController path = PathController.getInstance();
+	//default scenario library is classpath: scenario folder
+	private static ScriptCache scripts = new ScriptCache("scenario");
+	//finished scenarios are written here, then released, only digest and history counters are kept
+	private static ResultSink sink;
+	private static ActionMetrics total = new ActionMetrics();
+	private static EmailReporter reporter = EmailReporter.getInstance();
+	private static ScenarioHistory history = new ScenarioHistory(ScenarioHistory.defaultFile());
 	
 	public static void main(String[] args){
 		//could add -Dsmartqa.debug=true to open debug log
 		System.setProperty("smartqa.debug", "false");
+		if(System.getProperty(WorkerPool.WORKER) != null){
+			serveWorker();
+			return;
+		}
+		
 		try{
 			List<Scenario> scenarios = parseScenario(args);
-			for(Scenario scenario : scenarios)
-				runScenario(scenario);
+			history.schedule(scenarios);
+			int workers = Integer.getInteger("smartqa.workers", 1);
 			
+			List<String> names = new LinkedList<String>();
 			for(Scenario scenario : scenarios)
-				System.out.println(scenario);
+				names.add(scenario.name);
+			scripts.compileAll(names, Math.max(workers, Runtime.getRuntime().availableProcessors()));
+			
+			sink = new ResultSink(ResultSink.defaultFolder());
+			//scenarios are taken out one by one, so finished ones can be collected
+			Queue<Scenario> queue = new ConcurrentLinkedQueue<Scenario>(scenarios);
+			scenarios.clear();
+			int forks = Integer.getInteger("smartqa.forks", 0);
+			if(forks > 1 && queue.size() > 1)
+				WorkerPool.run(queue, forks, history);
+			else
+				runScenarios(queue, workers);
+			
+			//percentile budgets are judged by all runs, verdicts are reported apart from scenarios
+			Map<String, List<String>> verdicts = new LinkedHashMap<String, List<String>>();
+			for(String name : new LinkedHashSet<String>(names)){
+				BudgetChecker verdict = BudgetChecker.percentiles(name);
+				List<String> breaches = new ArrayList<String>();
+				for(String failure : verdict.getFailures())
+					breaches.add("fail: "+failure);
+				for(String warning : verdict.getWarnings())
+					breaches.add("warn: "+warning);
+				if(breaches.isEmpty())
+					continue;
+				
+				StringBuilder buf = new StringBuilder("Budget verdict [").append(name).append("]\n");
+				for(String breach : breaches)
+					buf.append("budget ").append(breach).append("\n");
+				System.out.println(buf);
+				verdicts.put(name, breaches);
+				reporter.addVerdict(name, breaches);
+			}
+			if(sink != null && !verdicts.isEmpty())
+				sink.appendVerdicts(verdicts);
+			
+			if(total.getSteps() > 0){
+				LOG.info("All scenarios: "+total);
+				for(ActionMetrics.Entry entry : total.slowest(10))
+					LOG.info("  "+entry);
+			}
 		}catch(Exception ex){
 			ex.printStackTrace();
 			throw new SmartQAException(ex.getMessage());
+		}finally{
+			//digest is mailed in background while browsers shut down
+			reporter.send();
+			Browser.shutdownInstance();
+			if(TimingSeries.getInstance() != null)
+				TimingSeries.getInstance().close();
+			ScreenshotWriter.getInstance().close();
+			if(sink != null)
+				sink.close();
+			history.save();
+			reporter.close();
 		}
 	}
 	
 	/**
-	 * trigger each scenario instance to run,
-	 * restart browser each time to ignore side-affect of each scenario
+	 * serve as forked worker JVM, scenarios come from engine JVM
+	 */
+	private static void serveWorker(){
+		try{
+			WorkerPool.serve(Integer.getInteger(WorkerPool.WORKER));
+		}catch(Exception ex){
+			ex.printStackTrace();
+			throw new SmartQAException(ex.getMessage());
+		}finally{
+			Browser.shutdownInstance();
+			if(TimingSeries.getInstance() != null)
+				TimingSeries.getInstance().close();
+			ScreenshotWriter.getInstance().close();
+		}
+	}
+	
+	/**
+	 * run all scenarios, sequentially when only one worker, 
+	 * otherwise each worker of a fixed pool takes scenarios from queue until it is empty
+	 * 
+	 * @param queue - scenario beans to run, taken out as they start
+	 * @param workers - number of parallel workers
+	 * @throws Exception
+	 */
+	private static void runScenarios(final Queue<Scenario> queue, int workers) throws Exception{
+		int size = queue.size();
+		if(workers <= 1 || size <= 1){
+			Scenario scenario;
+			while((scenario = queue.poll()) != null)
+				runScenario(scenario);
+			return;
+		}
+		
+		workers = Math.min(workers, size);
+		LOG.info("Run "+size+" scenarios with "+workers+" workers");
+		ExecutorService executor = Executors.newFixedThreadPool(workers, new WorkerFactory());
+		try{
+			List<Future<?>> futures = new LinkedList<Future<?>>();
+			for(int i = 0; i < workers; i++)
+				futures.add(executor.submit(new Runnable(){
+					@Override
+					public void run(){
+						Scenario scenario;
+						while((scenario = queue.poll()) != null)
+							runScenario(scenario);
+					}
+				}));
+			
+			//wait all workers drain the queue, error of a worker is thrown here
+			for(Future<?> future : futures)
+				future.get();
+		}finally{
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * run scenario and complete it
 	 * 
 	 * @param instance - scenario bean
 	 */
 	private static void runScenario(Scenario instance){
+		try{
+			execute(instance);
+		}finally{
+			complete(instance);
+		}
+	}
+	
+	/**
+	 * trigger each scenario instance to run, aborted one is run again up to -Dsmartqa.retry times,
+	 * each attempt resumes from last checkpoint of the one before, see {@link StepJournal}
+	 * 
+	 * @param instance - scenario bean
+	 */
+	static void execute(Scenario instance){
+		int retry = Math.max(0, Integer.getInteger("smartqa.retry", 0));
+		instance.start = System.currentTimeMillis();
+		StepJournal journal = null;
+		for(int attempt = 0; ; attempt++){
+			if(attempt > 0){
+				LOG.warn("Retry scenario "+instance.name+" ("+attempt+"/"+retry+"), caused by "+instance.result);
+				instance.retries = attempt;
+			}
+			
+			journal = retry > 0 ? new StepJournal(journal) : null;
+			if(!attempt(instance, journal, attempt == retry))
+				break;
+		}
+		instance.duration = System.currentTimeMillis() - instance.start;
+	}
+	
+	/**
+	 * run scenario once, browser is leased freshly reset each time to ignore side-affect of each scenario
+	 * 
+	 * @param instance - scenario bean
+	 * @param journal - step journal bound as core, or null when retry disabled
+	 * @param last - no retry after this attempt
+	 * @return true if scenario aborted and should be run again
+	 */
+	private static boolean attempt(Scenario instance, StepJournal journal, boolean last){
 		WebEngine engine = null;
+		boolean retry = false;
 		try{
 			engine = new WebEngine(path);
+			engine.setScenario(instance.name);
+			if(journal != null)
+				journal.attach(engine);
 			
-			//default scenario library is classpath: scenario folder
-			scriptEngine = new GroovyScriptEngine("scenario");
-			context.setVariable("core", engine);
+			Binding context = new Binding();
+			context.setVariable("core", journal != null ? journal : engine);
 			context.setVariable("common", CommonUtils.class);
 			context.setVariable("web", WebDriverUtils.class);
 			context.setVariable("keyboard", KeyboardUtils.class);
 			
-			Object value = scriptEngine.run(instance.name, context);
+			Object value = scripts.run(instance.name, context);
 			//scenario can return result
 			if(value != null){
 				if(value.toString().startsWith("failed"))
@@ -123,27 +311,112 @@ public class EngineMain {
 			
 			instance.status = "finish";
 			instance.result = "success";
+			instance.cause = null;
 		}catch(Exception ex){
 			instance.status = "abort";
 			instance.result = "exception: "+ex.getMessage();
+			instance.cause = ExceptionUtils.getStackTrace(ex);
+			retry = !last;
+			if(engine != null && !retry)
+				dumpScreenshots(instance, engine);
 		}finally{
 			//at last, don't forget to close web engine
-			engine.close();
+			if(engine != null){
+				//actions of all attempts are counted, budgets are judged by the last one
+				if(instance.metrics == null)
+					instance.metrics = engine.getMetrics();
+				else
+					instance.metrics.merge(engine.getMetrics());
+				if(!retry)
+					judge(instance, engine.getBudgets());
+				engine.close();
+			}
 		}
+		
+		return retry;
+	}
+	
+	/**
+	 * print finished scenario, write it into result files, run digest and history, 
+	 * its action metrics are added to suite total, then metrics, budgets and cause are released
+	 * 
+	 * @param instance - finished scenario bean
+	 */
+	static synchronized void complete(Scenario instance){
+		System.out.println(instance);
+		if(instance.metrics != null)
+			total.merge(instance.metrics);
+		if(sink != null)
+			sink.append(instance);
+		reporter.add(instance);
+		history.record(instance);
+		instance.metrics = null;
+		instance.budgets.clear();
+		instance.cause = null;
 	}
 	
 	/**
-	 * parse input args, to indicate which scenario should be executed
+	 * write screenshots of last actions kept by web engine, only happens when scenario failed
+	 * 
+	 * @param instance - scenario bean
+	 * @param engine - web engine of the run
+	 */
+	private static void dumpScreenshots(Scenario instance, WebEngine engine){
+		String folder = "screenshot/failure/" + instance.name.replaceAll("\\.scenario$", "") 
+				+ "/" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+		List<String> paths = engine.dumpScreenshots(folder);
+		if(!paths.isEmpty())
+			LOG.info("Scenario "+instance.name+" failed, last "+paths.size()+" action screenshots written into "+folder);
+	}
+	
+	/**
+	 * apply performance budget breaches to scenario, 
+	 * a finished scenario is failed by any breach of fail rule
+	 * 
+	 * @param instance - scenario bean
+	 * @param budgets - budget checker of the run
+	 */
+	private static void judge(Scenario instance, BudgetChecker budgets){
+		budgets.finish(instance.name);
+		for(String failure : budgets.getFailures())
+			instance.budgets.add("fail: "+failure);
+		for(String warning : budgets.getWarnings())
+			instance.budgets.add("warn: "+warning);
+		
+		if("finish".equals(instance.status) && !budgets.getFailures().isEmpty())
+			instance.result = "failed: budget exceeded, "+budgets.getFailures().get(0);
+	}
+	
+	/**
+	 * parse input args, to indicate which scenario should be executed<br/>
+	 * add -Dsmartqa.repeat=N to run each scenario N times, percentile budgets are judged by all runs
 	 * 
 	 * @param args - pass the scenario file names through console args which you plan to execute
 	 * @return scenario name to execute
 	 */
 	private static List<Scenario> parseScenario(String[] args){
-		args = new String[]{"software_manage/software_search.scenario"};
+		if(args == null || args.length == 0)
+			args = new String[]{"software_manage/software_search.scenario"};
+		int repeat = Math.max(1, Integer.getInteger("smartqa.repeat", 1));
 		List<Scenario> list = new LinkedList<Scenario>();
-		for(String arg : args)
-			list.add(new Scenario(arg));
+		for(int i = 0; i < repeat; i++)
+			for(String arg : args)
+				list.add(new Scenario(arg));
 		
 		return list;
 	}
+	
+	/**
+	 * name scenario worker threads, so log lines can tell which worker is talking
+	 */
+	private static class WorkerFactory implements ThreadFactory{
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable task){
+			Thread worker = new Thread(task, "scenario-worker-"+count.incrementAndGet());
+			worker.setDaemon(true);
+			return worker;
+		}
+	}
 }
@@ -16,17 +16,31 @@
  */
 package com.smartqa.engine;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.smartqa.metrics.ActionMetrics;
+
 /**
- * Simple JavaBean to store scenario info 
+ * Simple JavaBean to store scenario info, serializable to pass it between forked worker and engine 
  * 
  * @version 1.0
  * @author antren
  *
  */
-public class Scenario {
+public class Scenario implements Serializable {
+	private final static long serialVersionUID = 1L;
+	
 	String name;
 	String result;
 	String status;
+	ActionMetrics metrics;
+	List<String> budgets = new ArrayList<String>();
+	long start;
+	long duration;
+	String cause;
+	int retries;
 	
 	/**
 	 * default constructor, each scenario must has a name
@@ -39,6 +53,72 @@ public class Scenario {
 		this.status = "n/a";
 	}
 	
+	public String getName(){
+		return name;
+	}
+	
+	public String getStatus(){
+		return status;
+	}
+	
+	public String getResult(){
+		return result;
+	}
+	
+	/**
+	 * start time, epoch ms
+	 * 
+	 * @return start time
+	 */
+	public long getStart(){
+		return start;
+	}
+	
+	/**
+	 * run time, unit: ms
+	 * 
+	 * @return duration
+	 */
+	public long getDuration(){
+		return duration;
+	}
+	
+	/**
+	 * stack trace of exception aborted or failed scenario
+	 * 
+	 * @return cause, null if scenario passed or its result written
+	 */
+	public String getCause(){
+		return cause;
+	}
+	
+	/**
+	 * number of times scenario was run again after aborted
+	 * 
+	 * @return retries
+	 */
+	public int getRetries(){
+		return retries;
+	}
+	
+	/**
+	 * action latency of the run, null before scenario finished and after its result written
+	 * 
+	 * @return action metrics
+	 */
+	public ActionMetrics getMetrics(){
+		return metrics;
+	}
+	
+	/**
+	 * performance budget breaches, each starts with "fail:" or "warn:"
+	 * 
+	 * @return breach list, empty after its result written
+	 */
+	public List<String> getBudgets(){
+		return budgets;
+	}
+	
 	/**
 	 * print scenario info into a format string
 	 */
@@ -48,6 +128,15 @@ public class Scenario {
 		buf.append("Scenario [").append(name).append("]\n");
 		buf.append("status = ").append(status).append("\n");
 		buf.append("result = ").append(result).append("\n");
+		if(retries > 0)
+			buf.append("retries = ").append(retries).append("\n");
+		if(metrics != null && metrics.getSteps() > 0){
+			buf.append("time = ").append(metrics).append("\n");
+			for(ActionMetrics.Entry entry : metrics.slowest(3))
+				buf.append("  ").append(entry).append("\n");
+		}
+		for(String budget : budgets)
+			buf.append("budget ").append(budget).append("\n");
 		
 		return buf.toString();
 	}
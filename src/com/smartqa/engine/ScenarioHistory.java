@@ -0,0 +1,242 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>
+ * Duration and outcome history of each scenario, used to schedule next run.<br/>
+ * Kept in history/scenario.history, change it by -Dsmartqa.history, one tab separated line for each scenario:
+ * </p>
+ *
+ * <p style="color:gray">
+ * software_manage/software_search.scenario	12840	25	PPPFP
+ * </p>
+ *
+ * <p>
+ * Columns are expected duration in ms (moving average of finished runs), number of runs
+ * and outcomes of last runs, P for passed and F for failed or aborted, newest last.
+ * </p>
+ *
+ * <p>
+ * {@link #schedule(List)} puts scenarios failed in last 3 runs first, then the rest,
+ * each part by expected duration longest first, so parallel workers don't end with one long scenario
+ * started last, and failures show up early. Scenario never run is expected to take the average time.
+ * Add -Dsmartqa.schedule=args to keep argument order.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class ScenarioHistory {
+	private final static Logger LOG = LogManager.getLogger("ScenarioHistory");
+	//weight of latest run in expected duration
+	private final static double ALPHA = 0.3;
+	private final static int OUTCOMES = 10;
+	private final static int RECENT = 3;
+
+	private final File file;
+	private final Map<String, Record> records = new LinkedHashMap<String, Record>();
+
+	/**
+	 * load history file, empty history if it doesn't exist
+	 *
+	 * @param file - history file
+	 */
+	public ScenarioHistory(File file){
+		this.file = file;
+		load();
+	}
+
+	/**
+	 * default history file: -Dsmartqa.history, or history/scenario.history
+	 *
+	 * @return history file
+	 */
+	public static File defaultFile(){
+		return new File(System.getProperty("smartqa.history", "history/scenario.history"));
+	}
+
+	/**
+	 * order scenarios to run: recently failed first, then longest expected duration first,
+	 * ties keep argument order
+	 *
+	 * @param scenarios - scenario beans, sorted in place
+	 */
+	public synchronized void schedule(List<Scenario> scenarios){
+		if("args".equalsIgnoreCase(System.getProperty("smartqa.schedule")) || records.isEmpty())
+			return;
+
+		long sum = 0;
+		int known = 0;
+		for(Record record : records.values())
+			if(record.expected > 0){
+				sum += record.expected;
+				known++;
+			}
+		final long average = known == 0 ? 0 : sum / known;
+
+		Collections.sort(scenarios, new Comparator<Scenario>(){
+			@Override
+			public int compare(Scenario a, Scenario b){
+				int failed = Boolean.compare(recentlyFailed(b.name), recentlyFailed(a.name));
+				if(failed != 0)
+					return failed;
+				return Long.compare(expected(b.name, average), expected(a.name, average));
+			}
+		});
+
+		long total = 0;
+		for(Scenario scenario : scenarios)
+			total += expected(scenario.name, average);
+		LOG.info("Scheduled "+scenarios.size()+" scenarios by history, expected "+total/1000+"s in total, first: "
+				+scenarios.get(0).name);
+	}
+
+	/**
+	 * add outcome of finished scenario, aborted run only counts as failure, its duration is not used
+	 *
+	 * @param scenario - finished scenario bean
+	 */
+	public synchronized void record(Scenario scenario){
+		boolean abort = "abort".equals(scenario.status);
+		boolean failed = abort || (scenario.result != null && scenario.result.startsWith("failed"));
+
+		Record record = records.get(scenario.name);
+		if(record == null){
+			record = new Record();
+			records.put(scenario.name, record);
+		}
+
+		if(!abort && scenario.duration > 0)
+			record.expected = record.expected <= 0 ? scenario.duration
+					: Math.round(ALPHA * scenario.duration + (1 - ALPHA) * record.expected);
+		record.runs++;
+		record.outcomes = record.outcomes + (failed ? 'F' : 'P');
+		if(record.outcomes.length() > OUTCOMES)
+			record.outcomes = record.outcomes.substring(record.outcomes.length() - OUTCOMES);
+	}
+
+	/**
+	 * write history file, replaced as a whole by atomic move so an interrupted save keeps the old one
+	 */
+	public synchronized void save(){
+		if(records.isEmpty())
+			return;
+
+		if(file.getAbsoluteFile().getParentFile() != null)
+			file.getAbsoluteFile().getParentFile().mkdirs();
+		File temp = new File(file.getPath() + ".tmp");
+		try{
+			Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+			try{
+				out.write("#scenario\texpected ms\truns\toutcomes, newest last\n");
+				for(Map.Entry<String, Record> entry : records.entrySet()){
+					Record record = entry.getValue();
+					out.write(entry.getKey() + "\t" + record.expected + "\t" + record.runs + "\t" + record.outcomes + "\n");
+				}
+			}finally{
+				out.close();
+			}
+
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException ex){
+			LOG.warn("failed to write scenario history "+file+", caused by "+ex.getMessage());
+		}
+	}
+
+	private boolean recentlyFailed(String name){
+		Record record = records.get(name);
+		if(record == null)
+			return false;
+		return record.outcomes.substring(Math.max(0, record.outcomes.length() - RECENT)).indexOf('F') >= 0;
+	}
+
+	/**
+	 * expected duration of scenario by its history
+	 *
+	 * @param name - scenario name
+	 * @return expected duration in ms, 0 if never finished before
+	 */
+	public synchronized long getExpected(String name){
+		return expected(name, 0);
+	}
+
+	private long expected(String name, long average){
+		Record record = records.get(name);
+		return record == null || record.expected <= 0 ? average : record.expected;
+	}
+
+	private void load(){
+		if(!file.isFile())
+			return;
+
+		try{
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try{
+				String line;
+				while((line = in.readLine()) != null){
+					String[] parts = line.split("\t");
+					if(line.startsWith("#") || parts.length != 4)
+						continue;
+
+					Record record = new Record();
+					try{
+						record.expected = Long.parseLong(parts[1]);
+						record.runs = Long.parseLong(parts[2]);
+					}catch(NumberFormatException ex){
+						continue;
+					}
+					record.outcomes = parts[3].trim();
+					records.put(parts[0], record);
+				}
+			}finally{
+				in.close();
+			}
+		}catch(IOException ex){
+			LOG.warn("failed to read scenario history "+file+", caused by "+ex.getMessage());
+		}
+	}
+
+	/**
+	 * history of one scenario
+	 */
+	private static class Record{
+		long expected = 0;
+		long runs = 0;
+		String outcomes = "";
+	}
+}
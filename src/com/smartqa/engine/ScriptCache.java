@@ -0,0 +1,240 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.engine;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovySystem;
+import groovy.lang.Script;
+
+import com.smartqa.exception.SmartQAException;
+import com.smartqa.utils.CommonUtils;
+
+/**
+ * <p>
+ * Compiled scenario script cache, replace creating GroovyScriptEngine for each scenario.<br/>
+ * Each script is compiled once, keyed by hash of its content, and class files are persisted
+ * in cache library, default one is classpath:<b>cache/scenario</b>, change it by -Dsmartqa.cache.<br/>
+ * Next launch only compiles scripts changed since last time.
+ * Classes and scripts in scenario library can be used by scenarios, like GroovyScriptEngine did.
+ * </p>
+ *
+ * <p>
+ * Script classes are stateless, each run creates a new script instance bound to its own context,
+ * so the cache is shared by all workers.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class ScriptCache {
+	private final static Logger LOG = LogManager.getLogger("ScriptCache");
+	//written last into compiled folder, folder without it is not complete
+	private final static String DONE = "compiled";
+
+	private final File scriptLib;
+	private final File cacheLib;
+	private final GroovyClassLoader loader = new GroovyClassLoader(ScriptCache.class.getClassLoader());
+	private final ConcurrentMap<String, Future<Class<?>>> scripts = new ConcurrentHashMap<String, Future<Class<?>>>();
+
+	/**
+	 * constructor
+	 *
+	 * @param scriptLib - scenario library folder
+	 */
+	public ScriptCache(String scriptLib){
+		this.scriptLib = new File(scriptLib);
+		this.cacheLib = new File(System.getProperty("smartqa.cache", "cache/scenario"));
+		loader.addClasspath(this.scriptLib.getPath());
+	}
+
+	/**
+	 * compile scripts up front with several threads
+	 *
+	 * @param names - scenario names, relative to scenario library
+	 * @param threads - number of compile threads
+	 */
+	public void compileAll(Collection<String> names, int threads){
+		long start = System.currentTimeMillis();
+		Collection<String> unique = new LinkedHashSet<String>(names);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, unique.size())));
+		try{
+			List<Future<?>> futures = new LinkedList<Future<?>>();
+			for(final String name : unique)
+				futures.add(executor.submit(new Callable<Object>(){
+					@Override
+					public Object call() throws Exception{
+						return load(name);
+					}
+				}));
+
+			for(Future<?> future : futures)
+				try{
+					future.get();
+				}catch(ExecutionException ex){
+					//broken script only fails its own scenario later
+					LOG.warn(ex.getCause().getMessage());
+				}
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+		}finally{
+			executor.shutdownNow();
+		}
+
+		LOG.info("Prepare "+unique.size()+" scenario scripts in "+(System.currentTimeMillis()-start)+"ms");
+	}
+
+	/**
+	 * run scenario script with context
+	 *
+	 * @param name - scenario name
+	 * @param context - binding of script variables
+	 * @return script return value
+	 */
+	public Object run(String name, Binding context){
+		Script script = InvokerHelper.createScript(load(name), context);
+		return script.run();
+	}
+
+	/**
+	 * get compiled script class, compile it at first use
+	 *
+	 * @param name - scenario name
+	 * @return script class
+	 */
+	public Class<?> load(final String name){
+		Future<Class<?>> future = scripts.get(name);
+		if(future == null){
+			FutureTask<Class<?>> task = new FutureTask<Class<?>>(new Callable<Class<?>>(){
+				@Override
+				public Class<?> call() throws Exception{
+					return prepare(name);
+				}
+			});
+			future = scripts.putIfAbsent(name, task);
+			if(future == null){
+				future = task;
+				task.run();
+			}
+		}
+
+		try{
+			return future.get();
+		}catch(ExecutionException ex){
+			throw new SmartQAException("Failed to compile scenario "+name+", caused by "+ex.getCause().getMessage());
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+			throw new SmartQAException("Interrupted when compile scenario "+name);
+		}
+	}
+
+	/**
+	 * load script class from cache library, compile it if not cached
+	 *
+	 * @param name - scenario name
+	 * @return script class
+	 * @throws Exception
+	 */
+	private Class<?> prepare(String name) throws Exception{
+		File source = new File(scriptLib, name);
+		if(!source.isFile())
+			throw new SmartQAException("Can't find scenario script: "+source.getPath());
+
+		String text = FileUtils.readFileToString(source, "utf-8");
+		//groovy version is part of the key, class files from other version may not load
+		String hash = CommonUtils.hash((GroovySystem.getVersion()+"\n"+text).getBytes("utf-8"));
+		String className = "scenario_"+hash;
+		File target = new File(cacheLib, hash);
+
+		if(!new File(target, DONE).isFile())
+			compile(name, text, className, target);
+		else if(LOG.isDebugEnabled())
+			LOG.debug("Load cached scenario script "+name);
+
+		URLClassLoader classLoader = new URLClassLoader(new URL[]{target.toURI().toURL()}, loader);
+		return classLoader.loadClass(className);
+	}
+
+	/**
+	 * compile script into class files, write into unique temp folder first and move it as a whole,
+	 * so a half written folder is never taken as cache, even when several JVMs compile the same script
+	 *
+	 * @param name - scenario name
+	 * @param text - script content
+	 * @param className - script class name
+	 * @param target - cache folder of this script
+	 * @throws Exception
+	 */
+	private void compile(String name, String text, String className, File target) throws Exception{
+		long start = System.currentTimeMillis();
+		if(!cacheLib.isDirectory() && !cacheLib.mkdirs() && !cacheLib.isDirectory())
+			throw new SmartQAException("Can't create script cache folder: "+cacheLib.getPath());
+		File temp = Files.createTempDirectory(cacheLib.toPath(), className+".").toFile();
+
+		CompilerConfiguration config = new CompilerConfiguration();
+		config.setSourceEncoding("utf-8");
+		config.setTargetDirectory(temp);
+		CompilationUnit unit = new CompilationUnit(config, null, loader);
+		unit.addSource(className+".groovy", text);
+		try{
+			unit.compile(Phases.OUTPUT);
+			if(!new File(temp, DONE).createNewFile())
+				throw new SmartQAException("Can't mark compiled script: "+temp.getPath());
+		}catch(Exception ex){
+			FileUtils.deleteQuietly(temp);
+			throw ex;
+		}
+
+		//folder not complete is left by older version, nobody else writes into target
+		if(target.exists() && !new File(target, DONE).isFile())
+			FileUtils.deleteQuietly(target);
+		if(!temp.renameTo(target)){
+			FileUtils.deleteQuietly(temp);
+			//another JVM moved the same script in first, both results are equal
+			if(!new File(target, DONE).isFile())
+				throw new SmartQAException("Can't move compiled script into cache: "+target.getPath());
+		}
+
+		LOG.info("Compile scenario script "+name+" in "+(System.currentTimeMillis()-start)+"ms");
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+
+import groovy.lang.Closure;
+import groovy.lang.GroovyInterceptable;
+import groovy.lang.GroovyObjectSupport;
+
+import com.smartqa.exception.SmartQAException;
+
+/**
+ * <p>
+ * Step journal of one scenario attempt, bound to script as <b>core</b> in place of {@link WebEngine}
+ * when retry is enabled by -Dsmartqa.retry=N.<br/>
+ * Every page step (click, fill, getText, navigate...) is passed to web engine and kept with its
+ * return value or exception. At core.checkpoint('name') browser state is kept too: url, cookies,
+ * localStorage, sessionStorage and current frame.
+ * </p>
+ *
+ * <p>
+ * When scenario aborts, next attempt runs the script again with journal of failed one:
+ * steps before its last checkpoint are answered from journal without touching the browser,
+ * at that checkpoint browser state is restored, and the rest runs live. Page timing reads are answered
+ * from journal too. Settings like namespace, timeout, budget, window size or browser always run live,
+ * they carry over to the restored page. If script asks steps different from journal, the attempt fails
+ * and next one runs from start. Calls made directly on web driver are not journaled, so asking the driver
+ * before the checkpoint fails the attempt, and next one runs from start.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class StepJournal extends GroovyObjectSupport implements GroovyInterceptable {
+	private final static Logger LOG = LogManager.getLogger("StepJournal");
+	//page steps, others are settings and run live even in replay
+	private final static Set<String> STEPS = new HashSet<String>(Arrays.asList("click", "clickByArgs", "select",
+			"getText", "getTexts", "getAttributes", "readAll", "upload", "mouseover", "dragAndDrop", "fill", "batch",
+			"navigate", "refresh", "alert", "should", "context", "timing", "getPageTiming"));
+	private final static String STORAGE_READ = "var read = function(s){ var m = {}; " +
+			"for(var i = 0; i < s.length; i++){ var k = s.key(i); m[k] = s.getItem(k); } return m; }; " +
+			"return [read(window.localStorage), read(window.sessionStorage)];";
+	private final static String STORAGE_WRITE = "var write = function(s, m){ s.clear(); for(var k in m) s.setItem(k, m[k]); }; " +
+			"write(window.localStorage, arguments[0]); write(window.sessionStorage, arguments[1]);";
+
+	//journaled return value standing for web engine itself
+	private final static Object SELF = new Object();
+
+	private WebEngine engine;
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final List<Entry> replay;
+	private final int target;
+	private int position = 0;
+	private String frame = null;
+	private boolean broken = false;
+
+	/**
+	 * journal of new attempt
+	 *
+	 * @param previous - journal of failed attempt to resume from, or null to run from start
+	 */
+	public StepJournal(StepJournal previous){
+		int last = -1;
+		if(previous != null && !previous.broken)
+			for(int i = 0; i < previous.entries.size(); i++)
+				if(previous.entries.get(i).state != null)
+					last = i;
+
+		this.replay = last < 0 ? null : previous.entries;
+		this.target = last;
+		if(last >= 0)
+			LOG.info("Resume from checkpoint '"+replay.get(last).args+"', "+last+" steps replayed from journal");
+	}
+
+	/**
+	 * set web engine of the attempt, steps are passed to it
+	 *
+	 * @param engine - web engine
+	 */
+	public void attach(WebEngine engine){
+		this.engine = engine;
+	}
+
+	/**
+	 * still answering steps from journal of failed attempt
+	 *
+	 * @return true in replay
+	 */
+	private boolean isReplaying(){
+		return replay != null && position <= target;
+	}
+
+	@Override
+	public Object invokeMethod(String name, Object args){
+		Object[] params = args instanceof Object[] ? (Object[])args : new Object[]{args};
+		if("checkpoint".equals(name) && params.length == 1){
+			checkpoint(String.valueOf(params[0]));
+			return null;
+		}
+		if("getDriver".equals(name))
+			return driver();
+		if(!STEPS.contains(name))
+			return unwrap(InvokerHelper.invokeMethod(engine, name, params));
+
+		if("context".equals(name))
+			frame = params.length == 0 || params[0] == null || params[0].toString().length() == 0 ? null : params[0].toString();
+		Entry entry = new Entry(name, describe(params));
+		if(isReplaying())
+			return replay(entry);
+
+		entries.add(entry);
+		try{
+			Object value = InvokerHelper.invokeMethod(engine, name, params);
+			//engine of this attempt is closed when next one replays
+			entry.value = value == engine ? SELF : value;
+			return unwrap(value);
+		}catch(RuntimeException ex){
+			entry.error = ex;
+			throw ex;
+		}
+	}
+
+	@Override
+	public Object getProperty(String property){
+		if("driver".equals(property))
+			return driver();
+		return unwrap(InvokerHelper.getProperty(engine, property));
+	}
+
+	/**
+	 * web driver for direct calls, which replay can't answer: browser is still blank before the checkpoint
+	 */
+	private WebDriver driver(){
+		if(isReplaying()){
+			broken = true;
+			throw new SmartQAException("Web driver asked before checkpoint '"+replay.get(target).args
+					+"', direct driver calls can't be replayed, next attempt runs from start");
+		}
+		return engine.getDriver();
+	}
+
+	@Override
+	public void setProperty(String property, Object value){
+		InvokerHelper.setProperty(engine, property, value);
+	}
+
+	/**
+	 * keep browser state at checkpoint, or restore it when it is the one to resume from
+	 */
+	private void checkpoint(String name){
+		if(isReplaying()){
+			Entry entry = next(new Entry("checkpoint", name));
+			if(position <= target)
+				return;
+
+			restore(entry.state);
+			LOG.info("Checkpoint '"+name+"' restored at "+entry.state.url+", continue live");
+			return;
+		}
+
+		Entry entry = new Entry("checkpoint", name);
+		entry.state = capture();
+		entries.add(entry);
+		LOG.info("Checkpoint '"+name+"' kept at "+entry.state.url);
+	}
+
+	/**
+	 * answer step from journal of failed attempt
+	 */
+	private Object replay(Entry step){
+		Entry entry = next(step);
+		if(entry.error != null)
+			throw entry.error;
+		return unwrap(entry.value);
+	}
+
+	/**
+	 * take next journal entry, it must be the same step script asks now
+	 */
+	private Entry next(Entry step){
+		Entry entry = replay.get(position++);
+		if(!entry.action.equals(step.action) || !entry.args.equals(step.args)){
+			broken = true;
+			throw new SmartQAException("Replay diverged at step "+position+": journal has "+entry+", script asks "+step);
+		}
+		entries.add(entry);
+		return entry;
+	}
+
+	/**
+	 * read browser state of current page
+	 */
+	private State capture(){
+		WebDriver driver = engine.getDriver();
+		State state = new State();
+		state.url = driver.getCurrentUrl();
+		state.frame = frame;
+		state.cookies = new ArrayList<Cookie>(driver.manage().getCookies());
+		try{
+			Object storage = ((JavascriptExecutor)driver).executeScript(STORAGE_READ);
+			if(storage instanceof List && ((List<?>)storage).size() == 2){
+				state.local = (Map<?, ?>)((List<?>)storage).get(0);
+				state.session = (Map<?, ?>)((List<?>)storage).get(1);
+			}
+		}catch(Exception ex){
+			LOG.warn("Web storage not kept at checkpoint, caused by "+ex.getMessage());
+		}
+		return state;
+	}
+
+	/**
+	 * open checkpoint page, put back cookies and storage, then load it again with them
+	 */
+	private void restore(State state){
+		WebDriver driver = engine.getDriver();
+		engine.navigate(state.url);
+		driver.manage().deleteAllCookies();
+		for(Cookie cookie : state.cookies){
+			try{
+				driver.manage().addCookie(cookie);
+			}catch(Exception ex){
+				LOG.warn("Cookie "+cookie.getName()+" not restored, caused by "+ex.getMessage());
+			}
+		}
+		if(state.local != null){
+			try{
+				((JavascriptExecutor)driver).executeScript(STORAGE_WRITE, state.local, state.session);
+			}catch(Exception ex){
+				LOG.warn("Web storage not restored, caused by "+ex.getMessage());
+			}
+		}
+
+		engine.navigate(state.url);
+		frame = state.frame;
+		if(frame != null)
+			engine.context(frame);
+	}
+
+	/**
+	 * chained calls must go through journal as well
+	 */
+	private Object unwrap(Object value){
+		return value == engine || value == SELF ? this : value;
+	}
+
+	/**
+	 * step args for comparing, closure of batch can't be compared
+	 */
+	private static String describe(Object[] params){
+		Object[] copy = new Object[params.length];
+		for(int i = 0; i < params.length; i++)
+			copy[i] = params[i] instanceof Closure ? "{closure}" : params[i];
+		return Arrays.deepToString(copy);
+	}
+
+	/**
+	 * one journaled step or checkpoint
+	 */
+	private static class Entry{
+		final String action;
+		final String args;
+		Object value;
+		RuntimeException error;
+		State state;
+
+		Entry(String action, String args){
+			this.action = action;
+			this.args = args;
+		}
+
+		@Override
+		public String toString(){
+			return action + args;
+		}
+	}
+
+	/**
+	 * browser state at checkpoint
+	 */
+	private static class State{
+		String url;
+		String frame;
+		List<Cookie> cookies;
+		Map<?, ?> local;
+		Map<?, ?> session;
+	}
+}
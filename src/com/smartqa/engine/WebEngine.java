@@ -16,13 +16,25 @@
  */
 package com.smartqa.engine;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.openqa.selenium.Alert;
 import org.openqa.selenium.By;
 import org.openqa.selenium.Dimension;
+import org.openqa.selenium.JavascriptExecutor;
 import org.openqa.selenium.NoAlertPresentException;
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.StaleElementReferenceException;
+import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.UnsupportedCommandException;
 import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.WebElement;
 import org.openqa.selenium.interactions.Actions;
@@ -32,10 +44,21 @@ import org.openqa.selenium.support.ui.WebDriverWait;
 
 import com.smartqa.exception.ElementNotFoundException;
 import com.smartqa.exception.InvalidPathException;
+import com.smartqa.exception.SmartQAException;
+import com.smartqa.metrics.ActionMetrics;
+import com.smartqa.metrics.Budget;
+import com.smartqa.metrics.BudgetChecker;
+import com.smartqa.metrics.PageTiming;
+import com.smartqa.metrics.TimingSeries;
+import com.smartqa.screenshot.ScreenshotRing;
 import com.smartqa.utils.CommonUtils;
 import com.smartqa.utils.WebDriverUtils;
+import com.smartqa.webdriver.BlockingProxy;
 import com.smartqa.webdriver.Browser;
 import com.smartqa.webdriver.PathController;
+import com.smartqa.webdriver.PathTemplate;
+
+import groovy.lang.Closure;
 
 /**
  * <p>
@@ -48,10 +71,12 @@ import com.smartqa.webdriver.PathController;
  * <ul>
  * 	<li>click</li>
  * 	<li>getText</li>
+ * 	<li>getTexts / getAttributes / readAll</li>
  * 	<li>should</li>
  * 	<li>mouseover</li>
  * 	<li>upload</li>
  *  <li>dragAndDrop</li>
+ *  <li>batch</li>
  * </ul>
  * </p>
  * 
@@ -63,9 +88,52 @@ import com.smartqa.webdriver.PathController;
  *  <li>timeout</li>
  *  <li>browser</li>
  *  <li>size</li>
+ *  <li>sync</li>
+ *  <li>cache</li>
  * </ul>
  * </p>
  * 
+ * <p>
+ * After each action engine waits the page settle down. By default it simply sleeps speed ms, 
+ * see {@link #resetSpeed(long)}. With sync mode (-Dsmartqa.sync=true or core.sync(true)) 
+ * it waits only until document loaded, no pending XHR/fetch and DOM unchanged for a short window,
+ * at most 4 times speed, at least 2s and no longer than element timeout, unless set by {@link #sync(long, long)}.
+ * Page is hooked to track XHR/fetch after navigate and by each wait, including the one after an action
+ * loading new page, so requests fired by next action are seen.
+ * </p>
+ * 
+ * <p>
+ * Located web elements are cached by namespace, name and args, so touching the same element again 
+ * skips locating. Cache is cleared when page or context changes, a stale element is located again.
+ * Disable it by -Dsmartqa.elementCache=false or core.cache(false).
+ * </p>
+ * 
+ * <p>
+ * Every action is timed by action name and path key, split into locate, action and sync phase,
+ * see {@link #getMetrics()}.
+ * </p>
+ * 
+ * <p>
+ * After navigate and refresh, page timing is read and appended to timing series file, see {@link TimingSeries}.
+ * Read timing of current page any time by {@link #timing()}.
+ * With {@link BlockingProxy} on, requests it dropped during the load are logged and kept in page timing.
+ * </p>
+ * 
+ * <p>
+ * Page and action timings are checked against performance budgets right after they are measured,
+ * see {@link #budget(String, double, String)} and {@link BudgetChecker}.
+ * </p>
+ * 
+ * <p>
+ * For debugging, -Dsmartqa.ring=N or core.ring(N) keeps screenshot after each of last N actions in memory,
+ * they are written to disk only when scenario failed, see {@link ScreenshotRing}.
+ * </p>
+ * 
+ * <p>
+ * With -Dsmartqa.retry=N an aborted scenario is run again up to N times, 
+ * resuming from its last core.checkpoint('name') instead of from start, see {@link StepJournal}.
+ * </p>
+ * 
  * @version 1.0
  * @author antren
  *
@@ -81,6 +149,71 @@ public class WebEngine {
 	private long speed = 500;
 	private boolean debug = false;
 	
+	//readiness based synchronization, unit: ms
+	private boolean sync = "true".equalsIgnoreCase(System.getProperty("smartqa.sync"));
+	//0 means derived from speed and timeout
+	private long syncTimeout = 0;
+	private long quietWindow = 100;
+	private long syncSteps = 0;
+	private long syncIdle = 0;
+	private long syncSaved = 0;
+	
+	//located element cache, key is namespace.name(args)
+	private boolean cache = !"false".equalsIgnoreCase(System.getProperty("smartqa.elementCache"));
+	private Map<String, WebElement> elements = new HashMap<String, WebElement>();
+	private long cacheHit = 0;
+	private long cacheMiss = 0;
+	private long cacheStale = 0;
+	
+	//latency of each action, current is the step running now
+	private ActionMetrics metrics = new ActionMetrics();
+	private Step current = null;
+	
+	//page timing of last navigation, scenario name is written with each sample
+	private TimingSeries series = TimingSeries.getInstance();
+	private PageTiming pageTiming = null;
+	private String scenario = null;
+	//blocking proxy counters when last navigation started
+	private BlockingProxy.Stats proxyMark = null;
+	
+	//performance budgets of this run
+	private BudgetChecker budgets = new BudgetChecker();
+	
+	//screenshots of last actions, null when disabled
+	private ScreenshotRing ring = Integer.getInteger("smartqa.ring", 0) > 0 ? new ScreenshotRing(Integer.getInteger("smartqa.ring")) : null;
+	
+	//read text or attribute of each xpath, null if not found
+	private final static String READ_SCRIPT = "var paths = arguments[0], attr = arguments[1], out = []; " +
+			"for(var i = 0; i < paths.length; i++){ " +
+			"var el = document.evaluate(paths[i], document, null, XPathResult.FIRST_ORDERED_NODE_TYPE, null).singleNodeValue; " +
+			"if(!el){ out.push(null); continue; } " +
+			"out.push(attr ? el.getAttribute(attr) : (el.innerText !== undefined ? el.innerText : el.textContent).trim()); } " +
+			"return out;";
+	
+	//run fill and select steps in page, return [failed step index or -1, reason], 
+	//index of last finished step is kept in window.__smartqaBatch as "token:index" in case script breaks off.
+	//value is set by native setter of input or textarea, so value tracker of React or Vue sees the change,
+	//disabled, readonly and non text fields are left to normal fill, which fails or types like web driver does
+	private final static String BATCH_SCRIPT = "var steps = arguments[0], token = arguments[1]; " +
+			"window.__smartqaBatch = token + ':-1'; " +
+			"for(var i = 0; i < steps.length; i++){ var s = steps[i]; " +
+			"var el = document.evaluate(s[1], document, null, XPathResult.FIRST_ORDERED_NODE_TYPE, null).singleNodeValue; " +
+			"if(!el || !(el.offsetWidth || el.offsetHeight || el.getClientRects().length)) return [i, 'element not visible']; " +
+			"if(el.disabled || (el.matches && el.matches(':disabled'))) return [i, 'element disabled']; " +
+			"try{ if(s[0] == 'fill'){ " +
+			"var proto = el instanceof HTMLTextAreaElement ? HTMLTextAreaElement.prototype " +
+			": el instanceof HTMLInputElement ? HTMLInputElement.prototype : null; " +
+			"if(!proto) return [i, 'not a text field']; if(el.readOnly) return [i, 'element readonly']; " +
+			"var setter = Object.getOwnPropertyDescriptor(proto, 'value'); el.focus(); " +
+			"if(setter && setter.set) setter.set.call(el, s[2]); else el.value = s[2]; " +
+			"el.dispatchEvent(new Event('input', {bubbles: true})); el.dispatchEvent(new Event('change', {bubbles: true})); } " +
+			"else if(s[0] == 'select'){ var found = -1; for(var j = 0; j < el.options.length; j++) " +
+			"if(el.options[j].text.replace(/\\s+/g, ' ').trim() == s[2]){ found = j; break; } " +
+			"if(found < 0) return [i, 'option not found: ' + s[2]]; el.selectedIndex = found; " +
+			"el.dispatchEvent(new Event('change', {bubbles: true})); } " +
+			"}catch(e){ return [i, String(e)]; } window.__smartqaBatch = token + ':' + i; } return [-1, ''];";
+	private final static String BATCH_PROGRESS = "return window.__smartqaBatch;";
+	
 	/**
 	 * constructor only need path controller, recommend to use
 	 * 
@@ -97,14 +230,15 @@ public class WebEngine {
 	 * @param path
 	 */
 	public WebEngine(WebDriver driver, PathController path){
-		if(driver == null)
-			driver = browser.getDriver(null);
-			
-		this.driver = driver;
 		this.path = path;
-		
 		if("true".equalsIgnoreCase(System.getProperty("smartqa.debug")))
-			debug = true;	
+			debug = true;
+		//invalid budget file fails before any driver is leased, nothing to give back
+		budgets.load(namespace);
+		
+		if(driver == null)
+			driver = browser.lease(null);
+		this.driver = driver;
 	}
 	
 	/**
@@ -113,13 +247,17 @@ public class WebEngine {
 	 * @param type - browser type like "Firefox", "Chrome", "IE"
 	 */
 	public void browser(String type){
-		this.driver.quit();
+		browser.release(this.driver);
+		//released already, close() must not give it back again if lease fails
+		this.driver = null;
+		elements.clear();
 		LOG.info("switch driver to " + type);
-		this.driver = browser.getDriver(type);
+		this.driver = browser.lease(type);
 	}
 	
 	/**
-	 * reset action perform speed, default is 500ms, unit is ms
+	 * reset action perform speed, default is 500ms, unit is ms<br/>
+	 * in sync mode it is the fallback when page state can't be read
 	 * 
 	 * @param speed
 	 */
@@ -127,6 +265,168 @@ public class WebEngine {
 		this.speed = speed;
 	}
 	
+	/**
+	 * enable or disable sync mode, when disabled fall back to sleep speed ms
+	 * 
+	 * @param enable
+	 */
+	public void sync(boolean enable){
+		LOG.info((enable ? "enable" : "disable") + " page sync mode");
+		this.sync = enable;
+		if(enable)
+			WebDriverUtils.watchPage(driver);
+	}
+	
+	/**
+	 * enable sync mode with custom ceiling and quiet window, unit: ms
+	 * 
+	 * @param timeout - max wait time for each action, 0 to derive it from speed and element timeout
+	 * @param quiet - DOM must keep unchanged at least so long
+	 */
+	public void sync(long timeout, long quiet){
+		this.syncTimeout = timeout;
+		this.quietWindow = quiet;
+		sync(true);
+	}
+	
+	/**
+	 * get sync mode statistic: steps, idle (ms waited) and saved (ms saved compare to fixed sleep)
+	 * 
+	 * @return statistic map
+	 */
+	public Map<String, Long> getSyncStats(){
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("steps", syncSteps);
+		stats.put("idle", syncIdle);
+		stats.put("saved", syncSaved);
+		return stats;
+	}
+	
+	/**
+	 * enable or disable located element cache
+	 * 
+	 * @param enable
+	 */
+	public void cache(boolean enable){
+		LOG.info((enable ? "enable" : "disable") + " element cache");
+		this.cache = enable;
+		elements.clear();
+	}
+	
+	/**
+	 * get element cache statistic: hit, miss and stale
+	 * 
+	 * @return statistic map
+	 */
+	public Map<String, Long> getCacheStats(){
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("hit", cacheHit);
+		stats.put("miss", cacheMiss);
+		stats.put("stale", cacheStale);
+		return stats;
+	}
+	
+	/**
+	 * get latency of actions run by this engine
+	 * 
+	 * @return action metrics
+	 */
+	public ActionMetrics getMetrics(){
+		return metrics;
+	}
+	
+	/**
+	 * read timing of current page now
+	 * 
+	 * @return page timing, null if browser doesn't support it
+	 */
+	public PageTiming timing(){
+		return PageTiming.collect(driver);
+	}
+	
+	/**
+	 * get timing read after last navigate or refresh
+	 * 
+	 * @return page timing, null if not read yet
+	 */
+	public PageTiming getPageTiming(){
+		return pageTiming;
+	}
+	
+	/**
+	 * add performance budget, scenario fails when metric exceeds threshold, for example:<br/>
+	 * core.budget('page.time', 2000) or core.budget('search_button', 1500)
+	 * 
+	 * @param metric - page metric like page.time, step.time, or path key
+	 * @param threshold - unit: ms, no unit for cls
+	 */
+	public void budget(String metric, double threshold){
+		budgets.add(namespace, new Budget(metric, threshold, 0, false));
+	}
+	
+	/**
+	 * add performance budget with options, for example:<br/>
+	 * core.budget('ttfb.time', 800, 'p90 warn')
+	 * 
+	 * @param metric - page metric like page.time, step.time, or path key
+	 * @param threshold - unit: ms, no unit for cls
+	 * @param options - "pN" checks percentile of all runs, "warn" only warns
+	 */
+	public void budget(String metric, double threshold, String options){
+		budgets.add(namespace, Budget.parse(metric, threshold + " " + options));
+	}
+	
+	/**
+	 * get performance budgets and their breaches
+	 * 
+	 * @return budget checker
+	 */
+	public BudgetChecker getBudgets(){
+		return budgets;
+	}
+	
+	/**
+	 * keep screenshot after each of last actions in memory, written only when scenario failed
+	 * 
+	 * @param size - number of screenshots kept, 0 disables it
+	 */
+	public void ring(int size){
+		LOG.info(size > 0 ? "keep last " + size + " action screenshots" : "disable action screenshots");
+		this.ring = size > 0 ? new ScreenshotRing(size) : null;
+	}
+	
+	/**
+	 * write screenshots kept in ring to disk
+	 * 
+	 * @param folder - target folder
+	 * @return written paths, empty if ring disabled
+	 */
+	List<String> dumpScreenshots(String folder){
+		if(ring == null)
+			return new ArrayList<String>();
+		return ring.flush(folder);
+	}
+	
+	/**
+	 * set name of scenario running on this engine, written with page timing samples
+	 * 
+	 * @param scenario - scenario name
+	 */
+	void setScenario(String scenario){
+		this.scenario = scenario;
+	}
+	
+	/**
+	 * mark a point scenario can resume from when it is retried, 
+	 * only works with -Dsmartqa.retry, then calls are taken by {@link StepJournal}
+	 * 
+	 * @param name - checkpoint name, like "logged_in"
+	 */
+	public void checkpoint(String name){
+		if(debug)
+			LOG.info("checkpoint " + name + " ignored, retry not enabled");
+	}
+	
 	/**
 	 * switch namespace
 	 * 
@@ -134,6 +434,7 @@ public class WebEngine {
 	 */
 	public void namespace(String namespace){
 		LOG.info("switch namespace to " + namespace);
+		budgets.load(namespace);
 		this.namespace = namespace;
 	}
 	
@@ -169,10 +470,17 @@ public class WebEngine {
 	}
 	
 	/**
-	 * close web driver
+	 * close web driver, leased one goes back to browser session pool
 	 */
 	public void close(){
-		WebDriverUtils.closeWebDriver(driver);
+		if(syncSteps > 0)
+			LOG.info("Page sync waited "+syncIdle+"ms in "+syncSteps+" steps, saved "+syncSaved+"ms");
+		if(debug && cacheHit + cacheMiss > 0)
+			LOG.info("Element cache hit "+cacheHit+", miss "+cacheMiss+", stale "+cacheStale);
+		if(debug && metrics.getSteps() > 0)
+			LOG.info("Actions: "+metrics);
+		elements.clear();
+		browser.release(driver);
 	}
 	
 	/**
@@ -181,6 +489,7 @@ public class WebEngine {
 	 * @param id - iframe id
 	 */
 	public void context(String id){
+		elements.clear();
 		if(StringUtils.isEmpty(id))
 			driver.switchTo().defaultContent();
 		else
@@ -194,10 +503,15 @@ public class WebEngine {
 	 * @return WebEngine
 	 */
 	public WebEngine click(String name){
-		WebElement element = locate(name);
-		element.click();
-		CommonUtils.waiting(speed);
-		return this;
+		Step step = begin("click", name);
+		try{
+			WebElement element = locate(name);
+			element.click();
+			settle();
+			return this;
+		}finally{
+			end(step);
+		}
 	}
 	
 	/**
@@ -207,10 +521,15 @@ public class WebEngine {
 	 * @return WebEngine
 	 */
 	public WebEngine clickByArgs(String name, String... args){
-		WebElement element = locateByArgs(name, args);
-		element.click();
-		CommonUtils.waiting(speed);
-		return this;
+		Step step = begin("click", name);
+		try{
+			WebElement element = locateByArgs(name, args);
+			element.click();
+			settle();
+			return this;
+		}finally{
+			end(step);
+		}
 	}
 	
 	/**
@@ -221,12 +540,17 @@ public class WebEngine {
 	 * @return WebEngine
 	 */
 	public WebEngine select(String name, String value){
-		WebElement element = locate(name);
-		Select select = new Select(element);
-		select.selectByVisibleText(value);
-		
-		CommonUtils.waiting(speed);
-		return this;
+		Step step = begin("select", name);
+		try{
+			WebElement element = locate(name);
+			Select select = new Select(element);
+			select.selectByVisibleText(value);
+			
+			settle();
+			return this;
+		}finally{
+			end(step);
+		}
 	}
 	
 	/**
@@ -236,8 +560,75 @@ public class WebEngine {
 	 * @return WebEngine
 	 */
 	public String getText(String name){
-		WebElement element = locate(name);
-		return element.getText();
+		Step step = begin("getText", name);
+		try{
+			WebElement element = locate(name);
+			return element.getText();
+		}finally{
+			end(step);
+		}
+	}
+	
+	/**
+	 * get text content of many web elements in one script call, without waiting them show up
+	 * 
+	 * @param names - names stand for web elements
+	 * @return map of name to text, text is null if element not found
+	 */
+	public Map<String, String> getTexts(String... names){
+		Step step = begin("getTexts", "*");
+		try{
+			return read(Arrays.asList(names), null);
+		}finally{
+			end(step);
+		}
+	}
+	
+	/**
+	 * get attribute of many web elements in one script call, without waiting them show up
+	 * 
+	 * @param attribute - attribute name, like "href"
+	 * @param names - names stand for web elements
+	 * @return map of name to attribute value, value is null if element not found
+	 */
+	public Map<String, String> getAttributes(String attribute, String... names){
+		Step step = begin("getAttributes", "*");
+		try{
+			return read(Arrays.asList(names), attribute);
+		}finally{
+			end(step);
+		}
+	}
+	
+	/**
+	 * get text content of all web elements in current namespace, paths need args are skipped
+	 * 
+	 * @return map of name to text, text is null if element not found
+	 */
+	public Map<String, String> readAll(){
+		return readAll(namespace);
+	}
+	
+	/**
+	 * get text content of all web elements in namespace, paths need args are skipped
+	 * 
+	 * @param namespace
+	 * @return map of name to text, text is null if element not found
+	 */
+	public Map<String, String> readAll(String namespace){
+		String previous = this.namespace;
+		this.namespace = namespace;
+		Step step = begin("readAll", "*");
+		try{
+			List<String> names = new ArrayList<String>();
+			for(String name : path.listKeys(namespace))
+				if(path.getTemplate(namespace, name).getArity() == 0)
+					names.add(name);
+			return read(names, null);
+		}finally{
+			end(step);
+			this.namespace = previous;
+		}
 	}
 	
 	/**
@@ -248,12 +639,19 @@ public class WebEngine {
 	 * @return WebEngine
 	 */
 	public WebEngine upload(String name, String filePath){
-		String xpath = path.getPath(namespace, name);
-		
-		WebElement element = driver.findElement(By.xpath(xpath));
-		element.sendKeys(filePath);
-		CommonUtils.waiting(speed);
-		return this;
+		Step step = begin("upload", name);
+		try{
+			String xpath = path.getPath(namespace, name);
+			
+			long start = System.nanoTime();
+			WebElement element = driver.findElement(By.xpath(xpath));
+			step.locate += System.nanoTime() - start;
+			element.sendKeys(filePath);
+			settle();
+			return this;
+		}finally{
+			end(step);
+		}
 	}
 	
 	/**
@@ -263,11 +661,16 @@ public class WebEngine {
 	 * @return WebEngine
 	 */
 	public WebEngine mouseover(String name){
-		WebElement element = locate(name);
-		Actions builder = new Actions(driver);    
-		builder.moveToElement(element).build().perform();
-		CommonUtils.waiting(speed);
-		return this;
+		Step step = begin("mouseover", name);
+		try{
+			WebElement element = locate(name);
+			Actions builder = new Actions(driver);    
+			builder.moveToElement(element).build().perform();
+			settle();
+			return this;
+		}finally{
+			end(step);
+		}
 	}
 	
 	/**
@@ -278,13 +681,18 @@ public class WebEngine {
 	 * @return WebEngine
 	 */
 	public WebEngine dragAndDrop(String srcName, String destName){
-		WebElement srcElement = locate(srcName);
-		WebElement destElement = locate(destName);
-		
-		Actions builder = new Actions(driver);
-		builder.dragAndDrop(srcElement, destElement).build().perform();
-		CommonUtils.waiting(speed);
-		return this;
+		Step step = begin("dragAndDrop", srcName);
+		try{
+			WebElement srcElement = locate(srcName);
+			WebElement destElement = locate(destName);
+			
+			Actions builder = new Actions(driver);
+			builder.dragAndDrop(srcElement, destElement).build().perform();
+			settle();
+			return this;
+		}finally{
+			end(step);
+		}
 	}
 	
 	/**
@@ -295,13 +703,164 @@ public class WebEngine {
 	 * @return WebEngine
 	 */
 	public WebEngine fill(String name, String value){
-		WebElement element = locate(name);
-		element.clear();
-		element.sendKeys(value);
-		CommonUtils.waiting(speed);
+		Step step = begin("fill", name);
+		try{
+			WebElement element = locate(name);
+			element.clear();
+			element.sendKeys(value);
+			settle();
+			return this;
+		}finally{
+			end(step);
+		}
+	}
+	
+	/**
+	 * run several fill, select and click steps with fewer driver calls, for example:<br/>
+	 * core.batch { fill('user', 'tom'); select('city', 'Shanghai'); click('submit') }<br/>
+	 * Fill and select steps between clicks run in one script call, when a step can't run in script, 
+	 * it and the rest of them fall back to normal actions one by one. Clicks always run as normal actions,
+	 * so they get interactability checks of web driver and are never repeated.
+	 * If script breaks off and its progress can't be read, like page left by a change handler, batch fails
+	 * instead of repeating steps.
+	 * 
+	 * @param steps - closure of steps, see {@link BatchAction}
+	 * @return WebEngine
+	 */
+	public WebEngine batch(Closure<?> steps){
+		BatchAction batch = new BatchAction();
+		steps.setDelegate(batch);
+		steps.setResolveStrategy(Closure.DELEGATE_FIRST);
+		steps.call();
+		
+		List<BatchAction.Step> list = batch.getSteps();
+		if(list.isEmpty())
+			return this;
+		
+		Step step = begin("batch", list.get(0).name);
+		try{
+			return runBatch(list);
+		}finally{
+			end(step);
+		}
+	}
+	
+	/**
+	 * run recorded batch steps: fill and select steps between clicks in one script call each, 
+	 * clicks and steps script couldn't do as single steps
+	 * 
+	 * @param list - recorded steps
+	 * @return WebEngine
+	 */
+	private WebEngine runBatch(List<BatchAction.Step> list){
+		//resolve all locators up front, a wrong key fails before anything runs
+		List<String> xpaths = new ArrayList<String>(list.size());
+		for(BatchAction.Step step : list)
+			xpaths.add(expand(step.name, step.args));
+		
+		int from = 0;
+		while(from < list.size()){
+			if("click".equals(list.get(from).action)){
+				runSingle(list, from++);
+				continue;
+			}
+			
+			int to = from;
+			while(to < list.size() && !"click".equals(list.get(to).action))
+				to++;
+			for(int i = runScript(list, xpaths, from, to); i < to; i++)
+				runSingle(list, i);
+			from = to;
+		}
+		
 		return this;
 	}
 	
+	/**
+	 * run fill and select steps in one script call
+	 * 
+	 * @param list - recorded steps
+	 * @param xpaths - xpath of each step
+	 * @param from - first step to run
+	 * @param to - end of steps, exclusive
+	 * @return index of first step script didn't finish, to if all done
+	 */
+	private int runScript(List<BatchAction.Step> list, List<String> xpaths, int from, int to){
+		if(!(driver instanceof JavascriptExecutor))
+			return from;
+		
+		List<List<String>> script = new ArrayList<List<String>>();
+		for(int i = from; i < to; i++)
+			script.add(Arrays.asList(list.get(i).action, xpaths.get(i), list.get(i).value));
+		String token = Long.toString(System.nanoTime());
+		
+		try{
+			List<?> result = (List<?>)((JavascriptExecutor)driver).executeScript(BATCH_SCRIPT, script, token);
+			int failed = ((Number)result.get(0)).intValue();
+			if(failed < 0){
+				if(debug)
+					LOG.info("Batch of "+(to-from)+" steps done in one call");
+				settle();
+				return to;
+			}
+			
+			LOG.warn("Batch step "+(from+failed+1)+" "+list.get(from+failed)+" fall back to single step, caused by "+result.get(1));
+			return from + failed;
+		}catch(UnsupportedCommandException ex){
+			//driver runs no script, nothing done
+			LOG.warn("Batch step "+(from+1)+" "+list.get(from)+" fall back to single step, caused by "+ex.getMessage());
+			return from;
+		}catch(RuntimeException ex){
+			//script broke off, continue after the last step it finished
+			int next = from + progress(token, ex) + 1;
+			if(next < to)
+				LOG.warn("Batch broke off, step "+(next+1)+" "+list.get(next)+" fall back to single step, caused by "+ex.getMessage());
+			return next;
+		}
+	}
+	
+	/**
+	 * read index of last step batch script finished, to resume after it
+	 * 
+	 * @param token - token of the script call
+	 * @param cause - exception of the script call
+	 * @return index in the script call, -1 if none finished
+	 * @throws SmartQAException if progress can't be read
+	 */
+	private int progress(String token, RuntimeException cause){
+		Object mark = null;
+		try{
+			mark = ((JavascriptExecutor)driver).executeScript(BATCH_PROGRESS);
+		}catch(Exception ex){
+			//alert open or driver gone
+		}
+		
+		String value = mark == null ? "" : mark.toString();
+		if(!value.startsWith(token + ":"))
+			throw new SmartQAException("Batch broke off at unknown step, not repeated, caused by "+cause.getMessage());
+		return Integer.parseInt(value.substring(token.length() + 1));
+	}
+	
+	/**
+	 * run one batch step as normal action
+	 * 
+	 * @param list - recorded steps
+	 * @param index - index of step to run
+	 */
+	private void runSingle(List<BatchAction.Step> list, int index){
+		BatchAction.Step step = list.get(index);
+		try{
+			if("fill".equals(step.action))
+				fill(step.name, step.value);
+			else if("select".equals(step.action))
+				select(step.name, step.value);
+			else
+				clickByArgs(step.name, step.args);
+		}catch(RuntimeException ex){
+			throw new SmartQAException("Batch step "+(index+1)+" "+step+" failed: "+ex.getMessage());
+		}
+	}
+	
 	/**
 	 * navigate browser to specific web page
 	 * 
@@ -309,7 +868,21 @@ public class WebEngine {
 	 * @return WebEngine
 	 */
 	public WebEngine navigate(String url){
-		driver.navigate().to(url);
+		Step step = start("navigate", url);
+		markProxy();
+		if(browser.getPool().isEnabled())
+			browser.getPool().visit(driver, url);
+		try{
+			elements.clear();
+			driver.navigate().to(url);
+		}finally{
+			end(step);
+		}
+		
+		sample();
+		//hooked before next action, so requests it fires are waited in sync mode
+		if(sync)
+			WebDriverUtils.watchPage(driver);
 		return this;
 	}
 	
@@ -319,9 +892,18 @@ public class WebEngine {
 	 * @return WebEngine
 	 */
 	public WebEngine refresh(){
-		driver.navigate().refresh();
-		CommonUtils.waiting(2*1000);
-		LOG.info("refresh page...");
+		Step step = start("refresh", "page");
+		markProxy();
+		try{
+			elements.clear();
+			driver.navigate().refresh();
+			settle(2*1000);
+			LOG.info("refresh page...");
+		}finally{
+			end(step);
+		}
+		
+		sample();
 		return this;
 	}
 	
@@ -331,11 +913,21 @@ public class WebEngine {
 	 * @return WebEngine
 	 */
 	public WebEngine alert(){
+		Step step = start("alert", "alert");
 		try{
-			CommonUtils.waiting(speed);
+			long start = System.nanoTime();
+			if(sync)
+				waitAlert(speed);
+			else
+				CommonUtils.waiting(speed);
+			step.locate += System.nanoTime() - start;
 			Alert alert = driver.switchTo().alert();
 			alert.accept();
-		}catch(NoAlertPresentException ex){LOG.info("Try to handle alert, but not found one.");}
+		}catch(NoAlertPresentException ex){
+			LOG.info("Try to handle alert, but not found one.");
+		}finally{
+			end(step);
+		}
 		return this;
 	}
 	
@@ -348,28 +940,260 @@ public class WebEngine {
 	 * @return WebEngine
 	 */
 	public boolean should(String name, String condition, String... args){
-		String xpath = path.getPath(namespace, name);
+		Step step = begin("should", name);
+		try{
+			String xpath = expand(name, args);
+			
+			long start = System.nanoTime();
+			WebElement element = driver.findElement(By.xpath(xpath));
+			step.locate += System.nanoTime() - start;
+			if(element == null)
+				throw new ElementNotFoundException(xpath);
+			
+			if("display".equalsIgnoreCase(condition) || "show".equalsIgnoreCase(condition))
+				return element.isDisplayed();
+			else if("enable".equalsIgnoreCase(condition))
+				return element.isEnabled();
+			
+			return false;
+		}finally{
+			end(step);
+		}
+	}
+	
+	/**
+	 * read text or attribute of web elements by one script call, 
+	 * fall back to find them one by one if script not supported
+	 * 
+	 * @param names - names stand for web elements
+	 * @param attribute - attribute name, or null to read text
+	 * @return map of name to value, value is null if element not found
+	 */
+	private Map<String, String> read(List<String> names, String attribute){
+		List<String> xpaths = new ArrayList<String>(names.size());
+		for(String name : names)
+			xpaths.add(expand(name));
 		
-		if(args != null && args.length>0)
-			for(int i=0; i < args.length; i++){
-				String flag = "\\{"+i+"\\}";
-				if(xpath.contains("{"+i+"}"))
-					xpath = xpath.replaceAll(flag, args[i]);
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		try{
+			List<?> result = (List<?>)((JavascriptExecutor)driver).executeScript(READ_SCRIPT, xpaths, attribute);
+			for(int i = 0; i < names.size(); i++)
+				values.put(names.get(i), result.get(i) == null ? null : result.get(i).toString());
+			return values;
+		}catch(Exception ex){
+			LOG.warn("Bulk read fall back to one by one, caused by "+ex.getMessage());
+		}
+		
+		for(int i = 0; i < names.size(); i++){
+			List<WebElement> found = driver.findElements(By.xpath(xpaths.get(i)));
+			if(found.isEmpty())
+				values.put(names.get(i), null);
+			else
+				values.put(names.get(i), attribute == null ? found.get(0).getText() : found.get(0).getAttribute(attribute));
+		}
+		
+		return values;
+	}
+	
+	/**
+	 * read timing of page just loaded and append it to time series
+	 */
+	private void sample(){
+		BlockingProxy.Stats blocked = null;
+		if(proxyMark != null){
+			blocked = browser.getProxy().getStats().since(proxyMark);
+			proxyMark = null;
+			if(blocked.getBlocked() > 0)
+				LOG.info("Proxy: "+blocked);
+		}
+		
+		pageTiming = PageTiming.collect(driver);
+		if(pageTiming == null)
+			return;
+		
+		if(blocked != null)
+			pageTiming.setBlocked(blocked.getBlocked(), blocked.getBytes(), blocked.getTime());
+		if(debug)
+			LOG.info("Page timing: "+pageTiming);
+		budgets.checkPage(pageTiming);
+		if(series != null)
+			series.append(scenario, pageTiming);
+	}
+	
+	/**
+	 * keep blocking proxy counters before page load, per page numbers are exact when one scenario runs in JVM
+	 */
+	private void markProxy(){
+		BlockingProxy proxy = browser.getProxy();
+		proxyMark = proxy == null ? null : proxy.getStats();
+	}
+	
+	/**
+	 * wait page settle down after an action
+	 */
+	private void settle(){
+		settle(speed);
+	}
+	
+	/**
+	 * wait page settle down after an action, 
+	 * in sync mode wait page quiet, otherwise sleep fallback time
+	 * 
+	 * @param fallback - sleep time when not in sync mode, unit: ms
+	 */
+	private void settle(long fallback){
+		long start = System.nanoTime();
+		try{
+			if(!sync){
+				CommonUtils.waiting(fallback);
+				return;
 			}
+			
+			long idle = WebDriverUtils.waitForQuiet(driver, syncCeiling(), quietWindow);
+			if(idle < 0){
+				CommonUtils.waiting(fallback);
+				idle = fallback;
+			}
+			
+			syncSteps++;
+			syncIdle += idle;
+			syncSaved += fallback - idle;
+			if(debug)
+				LOG.info("Page settled in "+idle+"ms");
+		}finally{
+			if(current != null)
+				current.sync += System.nanoTime() - start;
+		}
+	}
+	
+	/**
+	 * max wait of sync mode: set one, or 4 times fixed sleep it replaces, at least 2s,
+	 * a page needing longer is still waited by element timeout when next action locates its element
+	 * 
+	 * @return ceiling, unit: ms
+	 */
+	private long syncCeiling(){
+		if(syncTimeout > 0)
+			return syncTimeout;
+		return Math.min(timeout * 1000, Math.max(4 * speed, 2000));
+	}
+	
+	/**
+	 * start timing an action on web element, steps may nest, like fallback steps of batch
+	 * 
+	 * @param action - action name
+	 * @param name - name stands for web element, or page url
+	 * @return step
+	 */
+	private Step begin(String action, String name){
+		return start(action, namespace + "." + name);
+	}
+	
+	/**
+	 * start timing an action not bound to web element
+	 * 
+	 * @param action - action name
+	 * @param key - key of the action, like page url
+	 * @return step
+	 */
+	private Step start(String action, String key){
+		Step step = new Step(action, key, current);
+		current = step;
+		return step;
+	}
+	
+	/**
+	 * finish timing an action and record it, also when action failed
+	 * 
+	 * @param step - step returned by begin
+	 */
+	private void end(Step step){
+		long total = System.nanoTime() - step.start;
+		metrics.record(step.action, step.key, step.locate, Math.max(0, total - step.locate - step.sync), 
+				step.sync, step.parent != null);
 		
-		if(StringUtils.isEmpty(xpath))
-			throw new InvalidPathException(name, namespace);
+		current = step.parent;
+		if(current != null){
+			current.locate += step.locate;
+			current.sync += step.sync;
+		}else{
+			visit();
+			budgets.checkStep(step.key, total / 1000000);
+			if(ring != null)
+				snapshot(step.action + " " + step.key);
+		}
+	}
+	
+	/**
+	 * tell session pool origin of current page, leased session visited several origins is not reused
+	 */
+	private void visit(){
+		if(!browser.getPool().isEnabled())
+			return;
 		
-		WebElement element = driver.findElement(By.xpath(xpath));
-		if(element == null)
-			throw new ElementNotFoundException(xpath);
+		try{
+			browser.getPool().visit(driver, driver.getCurrentUrl());
+		}catch(Exception ex){
+			//alert open, page is read after next step
+		}
+	}
+	
+	/**
+	 * capture screenshot into ring, failure is ignored so it never hides error of the action
+	 * 
+	 * @param label - step description
+	 */
+	private void snapshot(String label){
+		if(!(driver instanceof TakesScreenshot))
+			return;
 		
-		if("display".equalsIgnoreCase(condition) || "show".equalsIgnoreCase(condition))
-			return element.isDisplayed();
-		else if("enable".equalsIgnoreCase(condition))
-			return element.isEnabled();
+		try{
+			ring.add(((TakesScreenshot)driver).getScreenshotAs(OutputType.BYTES), label);
+		}catch(Exception ex){
+			if(debug)
+				LOG.info("Skip action screenshot, caused by "+ex.getMessage());
+		}
+	}
+	
+	/**
+	 * poll until alert show up or timeout
+	 * 
+	 * @param timeout - unit: ms
+	 */
+	private void waitAlert(long timeout){
+		long start = System.currentTimeMillis();
+		while(!WebDriverUtils.isAlertExist(driver) && System.currentTimeMillis() - start < timeout)
+			CommonUtils.waiting(50);
+	}
+	
+	/**
+	 * build xpath from path template in current namespace
+	 * 
+	 * @param name - name stands for web element
+	 * @param args - dynamic args to fill placeholders
+	 * @return xpath
+	 */
+	private String expand(String name, String... args){
+		PathTemplate template = path.getTemplate(namespace, name);
+		if(template == null)
+			throw new InvalidPathException(name, namespace);
 		
-		return false;
+		return template.expand(args);
+	}
+	
+	/**
+	 * build element cache key
+	 * 
+	 * @param name - name stands for web element
+	 * @param args - dynamic args of xpath
+	 * @return cache key
+	 */
+	private String cacheKey(String name, String... args){
+		StringBuilder buf = new StringBuilder(namespace).append('.').append(name);
+		if(args != null)
+			for(String arg : args)
+				buf.append('\u0000').append(arg);
+		return buf.toString();
 	}
 	
 	/**
@@ -389,16 +1213,40 @@ public class WebEngine {
 	 * @return element located or null if not found
 	 */
 	private WebElement locateByArgs(String name, String... args){
-		String xpath = path.getPath(namespace, name);
-		if(args != null && args.length>0)
-		for(int i=0; i < args.length; i++){
-			String flag = "\\{"+i+"\\}";
-			if(xpath.contains("{"+i+"}"))
-				xpath = xpath.replaceAll(flag, args[i]);
+		long start = System.nanoTime();
+		try{
+			return locateByXPath(expand(name, args), name, args);
+		}finally{
+			if(current != null)
+				current.locate += System.nanoTime() - start;
+		}
+	}
+	
+	/**
+	 * locate web element, from element cache or wait it visible
+	 * 
+	 * @param xpath - expanded xpath
+	 * @param name - name stands for web element
+	 * @param args - dynamic args of xpath
+	 * @return element located
+	 */
+	private WebElement locateByXPath(String xpath, String name, String... args){
+		String key = cache ? cacheKey(name, args) : null;
+		if(key != null){
+			WebElement element = elements.remove(key);
+			if(element != null)
+				try{
+					//cached one must still be visible, otherwise wait it like a new one
+					if(element.isDisplayed()){
+						cacheHit++;
+						elements.put(key, element);
+						return element;
+					}
+				}catch(StaleElementReferenceException ex){
+					cacheStale++;
+				}
+			cacheMiss++;
 		}
-		
-		if(StringUtils.isEmpty(xpath))
-			throw new InvalidPathException(name, namespace);
 		
 		try{
 			if(debug)
@@ -406,10 +1254,30 @@ public class WebEngine {
 			
 			Wait<WebDriver> wait = new WebDriverWait(driver, timeout);    
 			WebElement element = wait.until(WebDriverUtils.visibility(By.xpath(xpath)));
+			if(key != null)
+				elements.put(key, element);
 			
 		    return element;
 		}catch(Exception ex){
 			throw new ElementNotFoundException(xpath);
 		}
 	}
+	
+	/**
+	 * timing of one running action, unit: ns
+	 */
+	private static class Step{
+		final String action;
+		final String key;
+		final Step parent;
+		final long start = System.nanoTime();
+		long locate = 0;
+		long sync = 0;
+		
+		Step(String action, String key, Step parent){
+			this.action = action;
+			this.key = key;
+			this.parent = parent;
+		}
+	}
 }
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.smartqa.metrics.Budget;
+import com.smartqa.metrics.BudgetChecker;
+import com.smartqa.metrics.TimingSeries;
+
+/**
+ * <p>
+ * Run scenarios in forked worker JVMs, enabled by -Dsmartqa.forks=N.<br/>
+ * Browser, its driver system properties and java.awt.Robot of keyboard are JVM wide,
+ * so each worker JVM owns its own browsers and runs one scenario at a time.
+ * Engine hands out scenario names one by one through a loopback socket,
+ * worker sends back the finished scenario bean, which is then written into results like a local one.
+ * Percentile samples and page timing lines come back with it, so only engine JVM writes shared files.
+ * </p>
+ *
+ * <p>
+ * A worker dying in the middle only loses its current scenario, which is recorded as aborted,
+ * and a new worker is started in its place. Worker failing to start 3 times in a row is given up.
+ * Worker not answering in time is taken as dead too and killed: limit is -Dsmartqa.forks.timeout seconds when set,
+ * otherwise 5 times expected duration from {@link ScenarioHistory} for each attempt, at least 5 minutes,
+ * or 30 minutes for scenario without history.
+ * Worker JVM gets same classpath and all smartqa.* and log4j.* system properties,
+ * extra JVM options can be given by -Dsmartqa.forks.options, like "-Xmx512m".
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class WorkerPool {
+	private final static Logger LOG = LogManager.getLogger("WorkerPool");
+	//system property telling JVM to serve as worker, value is engine port
+	final static String WORKER = "smartqa.worker";
+	//slot number of worker JVM, names its own files in shared folders
+	final static String SLOT = "smartqa.worker.slot";
+	private final static int START_TIMEOUT = 60 * 1000;
+	private final static int START_RETRY = 3;
+	//answer timeout of one scenario attempt, unit: ms
+	private final static long MIN_TIMEOUT = 5 * 60 * 1000;
+	private final static long DEFAULT_TIMEOUT = 30 * 60 * 1000;
+
+	private final Queue<Scenario> queue;
+	private final ScenarioHistory history;
+
+	private WorkerPool(Queue<Scenario> queue, ScenarioHistory history){
+		this.queue = queue;
+		this.history = history;
+	}
+
+	/**
+	 * run scenarios by forked worker JVMs, returns when all of them completed
+	 *
+	 * @param queue - scenario beans to run, taken out as they are sent to workers
+	 * @param forks - number of worker JVMs
+	 * @param history - scenario history, sizes answer timeout
+	 * @throws InterruptedException
+	 */
+	static void run(Queue<Scenario> queue, int forks, ScenarioHistory history) throws InterruptedException{
+		int size = queue.size();
+		forks = Math.min(forks, size);
+		LOG.info("Run "+size+" scenarios with "+forks+" worker JVMs");
+
+		final WorkerPool pool = new WorkerPool(queue, history);
+		List<Thread> slots = new ArrayList<Thread>();
+		for(int i = 1; i <= forks; i++){
+			final int slot = i;
+			Thread thread = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					pool.serveSlot(slot);
+				}
+			}, "worker-slot-"+slot);
+			thread.setDaemon(true);
+			thread.start();
+			slots.add(thread);
+		}
+		for(Thread thread : slots)
+			thread.join();
+
+		//every slot gave up
+		Scenario left;
+		while((left = pool.queue.poll()) != null){
+			left.status = "abort";
+			left.result = "exception: no worker JVM could be started";
+			EngineMain.complete(left);
+		}
+	}
+
+	/**
+	 * worker JVM side: connect engine, run scenarios it sends until it says stop
+	 *
+	 * @param port - engine port on loopback
+	 * @throws Exception
+	 */
+	static void serve(int port) throws Exception{
+		Socket socket = new Socket(InetAddress.getByName(null), port);
+		TimingSeries series = TimingSeries.getInstance();
+		if(series != null)
+			series.hold();
+		try{
+			ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+			out.flush();
+			ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+
+			String name;
+			while((name = (String)in.readObject()) != null){
+				Scenario instance = new Scenario(name);
+				EngineMain.execute(instance);
+				out.writeObject(new Outcome(instance, BudgetChecker.takeSamples(name),
+						series == null ? new ArrayList<String>() : series.take()));
+				//each outcome is new, don't let stream keep references to old ones
+				out.reset();
+				out.flush();
+			}
+		}finally{
+			socket.close();
+		}
+	}
+
+	/**
+	 * keep one worker JVM running and feed it scenarios, start a new one when it dies
+	 */
+	private void serveSlot(int slot){
+		int failedStarts = 0;
+		while(!queue.isEmpty()){
+			Worker worker;
+			try{
+				worker = startWorker(slot);
+				failedStarts = 0;
+			}catch(Exception ex){
+				LOG.error("Worker "+slot+" failed to start, caused by "+ex.getMessage());
+				if(++failedStarts >= START_RETRY){
+					LOG.error("Worker "+slot+" given up");
+					return;
+				}
+				continue;
+			}
+
+			try{
+				feed(worker);
+			}finally{
+				worker.stop();
+			}
+		}
+	}
+
+	/**
+	 * send scenarios to worker one by one, returns when queue is empty or worker died
+	 */
+	private void feed(Worker worker){
+		Scenario instance;
+		while((instance = queue.poll()) != null){
+			instance.start = System.currentTimeMillis();
+			Outcome outcome;
+			long timeout = timeout(instance.name);
+			try{
+				worker.socket.setSoTimeout((int)Math.min(Integer.MAX_VALUE, timeout));
+				worker.out.writeObject(instance.name);
+				worker.out.flush();
+				outcome = (Outcome)worker.in.readObject();
+			}catch(Exception ex){
+				instance.status = "abort";
+				if(ex instanceof SocketTimeoutException)
+					instance.result = "exception: worker "+worker.slot+" hung over "+timeout/1000+"s, killed, "+worker.exit();
+				else
+					instance.result = "exception: worker "+worker.slot+" died, "+worker.exit();
+				instance.duration = System.currentTimeMillis() - instance.start;
+				LOG.error("Scenario "+instance.name+" lost, "+instance.result);
+				EngineMain.complete(instance);
+				return;
+			}
+
+			BudgetChecker.addSamples(instance.name, outcome.samples);
+			if(TimingSeries.getInstance() != null)
+				TimingSeries.getInstance().append(outcome.timing);
+			EngineMain.complete(outcome.scenario);
+		}
+
+		try{
+			//null tells worker to exit
+			worker.out.writeObject(null);
+			worker.out.flush();
+		}catch(IOException ex){
+			LOG.warn("Worker "+worker.slot+" already gone, "+worker.exit());
+		}
+	}
+
+	/**
+	 * how long a scenario may take in worker before it is taken as hung
+	 */
+	private long timeout(String name){
+		long fixed = Long.getLong("smartqa.forks.timeout", 0);
+		if(fixed > 0)
+			return fixed * 1000;
+
+		long expected = history.getExpected(name);
+		if(expected <= 0)
+			return DEFAULT_TIMEOUT;
+		int attempts = 1 + Math.max(0, Integer.getInteger("smartqa.retry", 0));
+		return Math.max(MIN_TIMEOUT, expected * 5 * attempts);
+	}
+
+	/**
+	 * fork worker JVM and wait it connect back
+	 */
+	private Worker startWorker(int slot) throws Exception{
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName(null));
+		Process process = null;
+		try{
+			List<String> command = new ArrayList<String>();
+			command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+			for(String option : System.getProperty("smartqa.forks.options", "").trim().split("\\s+"))
+				if(option.length() > 0)
+					command.add(option);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			for(String key : System.getProperties().stringPropertyNames())
+				if((key.startsWith("smartqa.") && !key.startsWith("smartqa.forks")) || key.startsWith("log4j."))
+					command.add("-D" + key + "=" + System.getProperty(key));
+			command.add("-D" + WORKER + "=" + server.getLocalPort());
+			command.add("-D" + SLOT + "=" + slot);
+			command.add(EngineMain.class.getName());
+
+			process = new ProcessBuilder(command).inheritIO().start();
+
+			//poll, so a worker dying on start is noticed at once
+			server.setSoTimeout(1000);
+			long end = System.currentTimeMillis() + START_TIMEOUT;
+			while(true){
+				try{
+					Socket socket = server.accept();
+					LOG.info("Worker "+slot+" started");
+					return new Worker(slot, process, socket);
+				}catch(SocketTimeoutException ex){
+					if(!alive(process))
+						throw new IOException("worker exited with code "+process.exitValue());
+					if(System.currentTimeMillis() > end)
+						throw new IOException("worker not connected in "+START_TIMEOUT/1000+"s");
+				}
+			}
+		}catch(Exception ex){
+			if(process != null)
+				process.destroy();
+			throw ex;
+		}finally{
+			server.close();
+		}
+	}
+
+	private static boolean alive(Process process){
+		try{
+			process.exitValue();
+			return false;
+		}catch(IllegalThreadStateException ex){
+			return true;
+		}
+	}
+
+	/**
+	 * one running worker JVM and its channel
+	 */
+	private static class Worker{
+		final int slot;
+		final Process process;
+		final Socket socket;
+		final ObjectOutputStream out;
+		final ObjectInputStream in;
+
+		Worker(int slot, Process process, Socket socket) throws IOException{
+			this.slot = slot;
+			this.process = process;
+			this.socket = socket;
+			this.out = new ObjectOutputStream(socket.getOutputStream());
+			this.out.flush();
+			this.in = new ObjectInputStream(socket.getInputStream());
+		}
+
+		/**
+		 * exit status for message, worker is killed if still running
+		 */
+		String exit(){
+			try{
+				socket.close();
+			}catch(IOException ex){
+				//ignore
+			}
+			if(alive(process))
+				process.destroy();
+			try{
+				return "exit code "+process.waitFor();
+			}catch(InterruptedException ex){
+				Thread.currentThread().interrupt();
+				return "exit code unknown";
+			}
+		}
+
+		/**
+		 * wait worker exit by itself, kill it if it doesn't in time
+		 */
+		void stop(){
+			long end = System.currentTimeMillis() + START_TIMEOUT;
+			try{
+				while(alive(process) && System.currentTimeMillis() < end)
+					Thread.sleep(100);
+			}catch(InterruptedException ex){
+				Thread.currentThread().interrupt();
+			}
+			exit();
+		}
+	}
+
+	/**
+	 * what worker sends back for each scenario
+	 */
+	private static class Outcome implements Serializable{
+		private final static long serialVersionUID = 1L;
+
+		final Scenario scenario;
+		final Map<Budget, List<Double>> samples;
+		final List<String> timing;
+
+		Outcome(Scenario scenario, Map<Budget, List<Double>> samples, List<String> timing){
+			this.scenario = scenario;
+			this.samples = samples;
+			this.timing = timing;
+		}
+	}
+}
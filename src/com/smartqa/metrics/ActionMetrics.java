@@ -0,0 +1,240 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.metrics;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Latency of web engine actions, one entry for each action and path key like <b>click software.search_button</b>.<br/>
+ * Time of each action is split into three phases:
+ * <ul>
+ * 	<li>locate - waiting web element show up</li>
+ * 	<li>action - the browser operation itself</li>
+ * 	<li>sync - waiting page settle down after action</li>
+ * </ul>
+ * Each phase has its own {@link LatencyHistogram}.
+ * </p>
+ *
+ * <p>
+ * Steps running inside another one, like fallback steps of a batch, are recorded in their own entry
+ * but only counted once in totals.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class ActionMetrics implements Serializable {
+	private final static long serialVersionUID = 1L;
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private long steps = 0;
+	private long locate = 0;
+	private long action = 0;
+	private long sync = 0;
+
+	/**
+	 * record one finished action, unit: nanosecond
+	 *
+	 * @param name - action name, like "click"
+	 * @param key - path key, like "namespace.name"
+	 * @param locateTime - time waiting element
+	 * @param actionTime - time of operation
+	 * @param syncTime - time waiting page settle
+	 * @param nested - step runs inside another recorded step
+	 */
+	public void record(String name, String key, long locateTime, long actionTime, long syncTime, boolean nested){
+		String id = name + " " + key;
+		Entry entry = entries.get(id);
+		if(entry == null){
+			entry = new Entry(name, key);
+			entries.put(id, entry);
+		}
+
+		entry.locate.record(locateTime / 1000);
+		entry.action.record(actionTime / 1000);
+		entry.sync.record(syncTime / 1000);
+		entry.total.record((locateTime + actionTime + syncTime) / 1000);
+
+		if(!nested){
+			steps++;
+			locate += locateTime / 1000;
+			action += actionTime / 1000;
+			sync += syncTime / 1000;
+		}
+	}
+
+	/**
+	 * add all records of another one, used to sum up scenarios
+	 *
+	 * @param other
+	 */
+	public void merge(ActionMetrics other){
+		for(Entry entry : other.entries.values()){
+			String id = entry.name + " " + entry.key;
+			Entry mine = entries.get(id);
+			if(mine == null){
+				mine = new Entry(entry.name, entry.key);
+				entries.put(id, mine);
+			}
+			mine.locate.merge(entry.locate);
+			mine.action.merge(entry.action);
+			mine.sync.merge(entry.sync);
+			mine.total.merge(entry.total);
+		}
+
+		steps += other.steps;
+		locate += other.locate;
+		action += other.action;
+		sync += other.sync;
+	}
+
+	/**
+	 * entries ordered by total time spent, most expensive first
+	 *
+	 * @param limit - max entries returned
+	 * @return entry list
+	 */
+	public List<Entry> slowest(int limit){
+		List<Entry> list = new ArrayList<Entry>(entries.values());
+		Collections.sort(list, new Comparator<Entry>(){
+			@Override
+			public int compare(Entry a, Entry b){
+				return Long.compare(b.total.getTotal(), a.total.getTotal());
+			}
+		});
+
+		return list.subList(0, Math.min(limit, list.size()));
+	}
+
+	/**
+	 * all entries in first recorded order
+	 *
+	 * @return entry list
+	 */
+	public List<Entry> getEntries(){
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	public long getSteps(){
+		return steps;
+	}
+
+	/**
+	 * total time of all phases, unit: ms
+	 *
+	 * @return total
+	 */
+	public long getTotal(){
+		return (locate + action + sync) / 1000;
+	}
+
+	/**
+	 * total locate time, unit: ms
+	 *
+	 * @return locate time
+	 */
+	public long getLocate(){
+		return locate / 1000;
+	}
+
+	/**
+	 * total action time, unit: ms
+	 *
+	 * @return action time
+	 */
+	public long getAction(){
+		return action / 1000;
+	}
+
+	/**
+	 * total sync time, unit: ms
+	 *
+	 * @return sync time
+	 */
+	public long getSync(){
+		return sync / 1000;
+	}
+
+	/**
+	 * print totals in one line
+	 */
+	@Override
+	public String toString(){
+		return steps + " steps in " + getTotal() + "ms (locate " + getLocate() + "ms, action " + getAction()
+				+ "ms, sync " + getSync() + "ms)";
+	}
+
+	/**
+	 * histograms of one action and path key
+	 */
+	public static class Entry implements Serializable{
+		private final static long serialVersionUID = 1L;
+
+		private final String name;
+		private final String key;
+		private final LatencyHistogram locate = new LatencyHistogram();
+		private final LatencyHistogram action = new LatencyHistogram();
+		private final LatencyHistogram sync = new LatencyHistogram();
+		private final LatencyHistogram total = new LatencyHistogram();
+
+		Entry(String name, String key){
+			this.name = name;
+			this.key = key;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		public String getKey(){
+			return key;
+		}
+
+		public LatencyHistogram getLocate(){
+			return locate;
+		}
+
+		public LatencyHistogram getAction(){
+			return action;
+		}
+
+		public LatencyHistogram getSync(){
+			return sync;
+		}
+
+		public LatencyHistogram getTotal(){
+			return total;
+		}
+
+		/**
+		 * print total histogram and time of each phase
+		 */
+		@Override
+		public String toString(){
+			return String.format("%s %s: %s, total %dms (locate %dms, action %dms, sync %dms)", name, key, total,
+					total.getTotal() / 1000, locate.getTotal() / 1000, action.getTotal() / 1000, sync.getTotal() / 1000);
+		}
+	}
+}
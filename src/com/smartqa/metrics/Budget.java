@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.metrics;
+
+import java.io.Serializable;
+
+import org.apache.commons.lang3.math.NumberUtils;
+
+import com.smartqa.exception.SmartQAException;
+
+/**
+ * <p>
+ * One performance budget rule: metric must not exceed threshold.<br/>
+ * Metric is one of:
+ * <ul>
+ * 	<li>page metric of {@link PageTiming}, like page.time, ttfb.time, cls - checked after each navigation</li>
+ * 	<li>step.time - total time of every action</li>
+ * 	<li>path key like namespace.name - total time of actions on that web element</li>
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * Rule is written as <b>[pN] threshold [warn]</b>, for example "2000", "p90 1500" or "800 warn".<br/>
+ * Without percentile each sample is checked, with percentile all samples of the scenario,
+ * including its earlier runs, are checked when scenario finished.
+ * Breach of warn rule only warns, otherwise scenario fails.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class Budget implements Serializable {
+	private final static long serialVersionUID = 1L;
+
+	private final String metric;
+	private final double threshold;
+	private final int percentile;
+	private final boolean warn;
+
+	public Budget(String metric, double threshold, int percentile, boolean warn){
+		this.metric = metric;
+		this.threshold = threshold;
+		this.percentile = percentile;
+		this.warn = warn;
+	}
+
+	/**
+	 * parse rule like "p90 1500 warn"
+	 *
+	 * @param metric - metric name
+	 * @param rule - rule text
+	 * @return Budget
+	 * @throws SmartQAException if rule can't be parsed
+	 */
+	public static Budget parse(String metric, String rule){
+		double threshold = -1;
+		int percentile = 0;
+		boolean warn = false;
+		for(String token : rule.trim().split("\\s+")){
+			if("warn".equalsIgnoreCase(token))
+				warn = true;
+			else if("fail".equalsIgnoreCase(token))
+				warn = false;
+			else if((token.startsWith("p") || token.startsWith("P")) && NumberUtils.isDigits(token.substring(1)))
+				percentile = Integer.parseInt(token.substring(1));
+			else if(NumberUtils.isNumber(token))
+				threshold = Double.parseDouble(token);
+			else
+				throw new SmartQAException("unknown budget option '"+token+"' of "+metric+": "+rule);
+		}
+
+		if(threshold < 0)
+			throw new SmartQAException("budget of "+metric+" needs a threshold: "+rule);
+		if(percentile > 100)
+			throw new SmartQAException("budget percentile of "+metric+" must be within 100: "+rule);
+
+		return new Budget(metric, threshold, percentile, warn);
+	}
+
+	public String getMetric(){
+		return metric;
+	}
+
+	public double getThreshold(){
+		return threshold;
+	}
+
+	/**
+	 * percentile checked when scenario finished, 0 means each sample is checked
+	 *
+	 * @return percentile
+	 */
+	public int getPercentile(){
+		return percentile;
+	}
+
+	public boolean isWarn(){
+		return warn;
+	}
+
+	/**
+	 * print rule like "page.time <= 2000 (p90, warn)"
+	 */
+	@Override
+	public String toString(){
+		StringBuilder buf = new StringBuilder(metric).append(" <= ").append(format(threshold));
+		if(percentile > 0 || warn){
+			buf.append(" (");
+			if(percentile > 0)
+				buf.append('p').append(percentile).append(warn ? ", " : "");
+			if(warn)
+				buf.append("warn");
+			buf.append(')');
+		}
+
+		return buf.toString();
+	}
+
+	/**
+	 * print number without useless decimals
+	 */
+	static String format(double value){
+		return value == Math.rint(value) ? String.valueOf((long)value) : String.valueOf(value);
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.metrics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.smartqa.exception.SmartQAException;
+
+/**
+ * <p>
+ * Check page and step timings of one scenario run against {@link Budget} rules.<br/>
+ * Rules come from script, like core.budget('page.time', 2000), or from budget file of namespace:
+ * budget/&lt;namespace&gt;.budget, loaded when engine switches to that namespace.
+ * Budget folder is set by -Dsmartqa.budget, each line of file is like:
+ * </p>
+ *
+ * <p style="color:gray">
+ * page.time = 2000<br/>
+ * ttfb.time = p90 800 warn<br/>
+ * search_button = 1500
+ * </p>
+ *
+ * <p>
+ * Path key without dot belongs to namespace of the file or script.
+ * Samples of percentile rules are kept by scenario name for the whole JVM,
+ * so scenario listed or repeated several times is judged once by all its runs, see {@link #percentiles(String)}.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class BudgetChecker {
+	private final static Logger LOG = LogManager.getLogger("BudgetChecker");
+	private final static String STEP_TIME = "step.time";
+
+	//samples of percentile rules, key is scenario and metric
+	private final static Map<String, History> history = new LinkedHashMap<String, History>();
+
+	private final String budgetLib = System.getProperty("smartqa.budget", "budget");
+	private final Map<String, Budget> budgets = new LinkedHashMap<String, Budget>();
+	private final Set<String> loaded = new HashSet<String>();
+	private final List<String> failures = new ArrayList<String>();
+	private final List<String> warnings = new ArrayList<String>();
+	private final Map<String, List<Double>> samples = new HashMap<String, List<Double>>();
+
+	/**
+	 * add or replace rule of metric
+	 *
+	 * @param namespace - namespace of path key without dot
+	 * @param budget - rule
+	 */
+	public void add(String namespace, Budget budget){
+		String metric = qualify(namespace, budget.getMetric());
+		if(!metric.equals(budget.getMetric()))
+			budget = new Budget(metric, budget.getThreshold(), budget.getPercentile(), budget.isWarn());
+
+		budgets.put(metric, budget);
+		LOG.info("Budget "+budget);
+	}
+
+	/**
+	 * load budget file of namespace once, nothing happens if file not exists
+	 *
+	 * @param namespace
+	 * @throws SmartQAException if file can't be read or rule is invalid
+	 */
+	public void load(String namespace){
+		if(loaded.contains(namespace))
+			return;
+
+		File file = new File(budgetLib, namespace + ".budget");
+		if(!file.isFile())
+			return;
+
+		Properties prop = new Properties();
+		try{
+			InputStreamReader reader = new InputStreamReader(new FileInputStream(file), "utf-8");
+			try{
+				prop.load(reader);
+			}finally{
+				reader.close();
+			}
+		}catch(IOException ex){
+			throw new SmartQAException("failed to read budget file "+file+", caused by "+ex.getMessage());
+		}
+
+		for(String metric : prop.stringPropertyNames())
+			add(namespace, Budget.parse(metric, prop.getProperty(metric)));
+		loaded.add(namespace);
+	}
+
+	/**
+	 * check page metrics after navigation
+	 *
+	 * @param timing - page timing
+	 */
+	public void checkPage(PageTiming timing){
+		if(budgets.isEmpty() || timing == null)
+			return;
+
+		for(Map.Entry<String, Long> entry : timing.toMap().entrySet())
+			if(entry.getValue() >= 0)
+				check(entry.getKey(), entry.getValue(), timing.getUrl());
+		if(timing.getCls() >= 0)
+			check(PageTiming.CLS, timing.getCls(), timing.getUrl());
+	}
+
+	/**
+	 * check total time of action
+	 *
+	 * @param key - path key like namespace.name
+	 * @param time - action total time, unit: ms
+	 */
+	public void checkStep(String key, long time){
+		if(budgets.isEmpty())
+			return;
+
+		check(STEP_TIME, time, key);
+		check(key, time, key);
+	}
+
+	/**
+	 * keep samples of percentile rules into scenario history when run finished
+	 *
+	 * @param scenario - scenario name
+	 */
+	public void finish(String scenario){
+		synchronized(history){
+			for(Budget budget : budgets.values()){
+				if(budget.getPercentile() == 0)
+					continue;
+
+				String key = scenario + "|" + budget.getMetric();
+				History runs = history.get(key);
+				if(runs == null){
+					runs = new History(scenario);
+					history.put(key, runs);
+				}
+				runs.budget = budget;
+				if(samples.containsKey(budget.getMetric()))
+					runs.values.addAll(samples.get(budget.getMetric()));
+			}
+		}
+		samples.clear();
+	}
+
+	/**
+	 * remove and return percentile samples of scenario kept so far,
+	 * used by forked worker to hand them to engine together with the scenario
+	 *
+	 * @param scenario - scenario name
+	 * @return samples of each percentile rule
+	 */
+	public static Map<Budget, List<Double>> takeSamples(String scenario){
+		Map<Budget, List<Double>> taken = new LinkedHashMap<Budget, List<Double>>();
+		synchronized(history){
+			Iterator<History> it = history.values().iterator();
+			while(it.hasNext()){
+				History runs = it.next();
+				if(!runs.scenario.equals(scenario))
+					continue;
+				taken.put(runs.budget, runs.values);
+				it.remove();
+			}
+		}
+
+		return taken;
+	}
+
+	/**
+	 * add percentile samples taken from another JVM by {@link #takeSamples(String)}
+	 *
+	 * @param scenario - scenario name
+	 * @param samples - samples of each percentile rule
+	 */
+	public static void addSamples(String scenario, Map<Budget, List<Double>> samples){
+		synchronized(history){
+			for(Map.Entry<Budget, List<Double>> entry : samples.entrySet()){
+				String key = scenario + "|" + entry.getKey().getMetric();
+				History runs = history.get(key);
+				if(runs == null){
+					runs = new History(scenario);
+					history.put(key, runs);
+				}
+				runs.budget = entry.getKey();
+				runs.values.addAll(entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * check percentile rules by samples of all runs of scenario, call it after all runs finished
+	 *
+	 * @param scenario - scenario name
+	 * @return checker holding breaches
+	 */
+	public static BudgetChecker percentiles(String scenario){
+		BudgetChecker checker = new BudgetChecker();
+		synchronized(history){
+			for(History runs : history.values()){
+				if(!runs.scenario.equals(scenario) || runs.values.isEmpty())
+					continue;
+
+				List<Double> values = new ArrayList<Double>(runs.values);
+				Collections.sort(values);
+				int rank = (int)Math.ceil(runs.budget.getPercentile() / 100.0 * values.size());
+				double value = values.get(Math.max(0, rank - 1));
+				if(value > runs.budget.getThreshold())
+					checker.breach(runs.budget, "p" + runs.budget.getPercentile() + " of " + values.size() 
+							+ " samples " + Budget.format(value), null);
+			}
+		}
+
+		return checker;
+	}
+
+	/**
+	 * breaches of fail rules
+	 *
+	 * @return breach messages
+	 */
+	public List<String> getFailures(){
+		return failures;
+	}
+
+	/**
+	 * breaches of warn rules
+	 *
+	 * @return breach messages
+	 */
+	public List<String> getWarnings(){
+		return warnings;
+	}
+
+	/**
+	 * check one sample, percentile rule only keeps it
+	 */
+	private void check(String metric, double value, String where){
+		Budget budget = budgets.get(metric);
+		if(budget == null)
+			return;
+
+		if(budget.getPercentile() > 0){
+			List<Double> values = samples.get(metric);
+			if(values == null){
+				values = new ArrayList<Double>();
+				samples.put(metric, values);
+			}
+			values.add(value);
+		}else if(value > budget.getThreshold()){
+			breach(budget, Budget.format(value), where);
+		}
+	}
+
+	private void breach(Budget budget, String measured, String where){
+		String message = budget.getMetric() + " " + measured + " > " + Budget.format(budget.getThreshold())
+				+ (where == null || where.equals(budget.getMetric()) ? "" : " at " + where);
+		if(budget.isWarn()){
+			warnings.add(message);
+			LOG.warn("Budget warning: "+message);
+		}else{
+			failures.add(message);
+			LOG.error("Budget exceeded: "+message);
+		}
+	}
+
+	/**
+	 * samples of one percentile rule of scenario
+	 */
+	private static class History{
+		final String scenario;
+		final List<Double> values = new ArrayList<Double>();
+		Budget budget;
+
+		History(String scenario){
+			this.scenario = scenario;
+		}
+	}
+
+	/**
+	 * path key without dot belongs to namespace
+	 */
+	private static String qualify(String namespace, String metric){
+		if(metric.indexOf('.') >= 0 || PageTiming.CLS.equals(metric) || namespace == null)
+			return metric;
+		return namespace + "." + metric;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.metrics;
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * Fixed size latency histogram, unit: microsecond.<br/>
+ * Each power of two range is split into 8 linear buckets, so recording is a few bit operations
+ * without allocation and percentile error is within 1/8 of the value.
+ * Values over about 19 hours go to the last bucket.
+ * </p>
+ *
+ * <p>
+ * Not thread safe, each web engine records into its own histograms,
+ * merge them by {@link #merge(LatencyHistogram)} afterwards.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class LatencyHistogram implements Serializable {
+	private final static long serialVersionUID = 1L;
+	private final static int SUB_BITS = 3;
+	private final static int SUB_COUNT = 1 << SUB_BITS;
+	private final static int MAX_BITS = 36;
+
+	private final long[] counts = new long[(MAX_BITS - SUB_BITS + 1) * SUB_COUNT];
+	private long count = 0;
+	private long total = 0;
+	private long max = 0;
+
+	/**
+	 * record one latency
+	 *
+	 * @param micros - latency, unit: microsecond
+	 */
+	public void record(long micros){
+		if(micros < 0)
+			micros = 0;
+
+		counts[index(micros)]++;
+		count++;
+		total += micros;
+		if(micros > max)
+			max = micros;
+	}
+
+	/**
+	 * add all records of another histogram into this one
+	 *
+	 * @param other
+	 */
+	public void merge(LatencyHistogram other){
+		for(int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		count += other.count;
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * latency at percentile, like 50, 90, 99
+	 *
+	 * @param percent - between 0 and 100
+	 * @return latency in microsecond, 0 if nothing recorded
+	 */
+	public long percentile(double percent){
+		if(count == 0)
+			return 0;
+
+		long rank = Math.max(1, (long)Math.ceil(percent / 100 * count));
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++){
+			seen += counts[i];
+			if(seen >= rank)
+				return Math.min(value(i), max);
+		}
+
+		return max;
+	}
+
+	public long getCount(){
+		return count;
+	}
+
+	/**
+	 * sum of all latencies, unit: microsecond
+	 *
+	 * @return total
+	 */
+	public long getTotal(){
+		return total;
+	}
+
+	public long getMax(){
+		return max;
+	}
+
+	/**
+	 * bucket of value, values below 8 have their own bucket
+	 */
+	private static int index(long micros){
+		if(micros < SUB_COUNT)
+			return (int)micros;
+
+		int bits = 63 - Long.numberOfLeadingZeros(micros);
+		if(bits >= MAX_BITS)
+			return (MAX_BITS - SUB_BITS + 1) * SUB_COUNT - 1;
+
+		int shift = bits - SUB_BITS;
+		return (shift + 1) * SUB_COUNT + (int)((micros >> shift) & (SUB_COUNT - 1));
+	}
+
+	/**
+	 * upper bound of bucket
+	 */
+	private static long value(int index){
+		if(index < SUB_COUNT)
+			return index;
+
+		int shift = index / SUB_COUNT - 1;
+		long base = (long)(SUB_COUNT + index % SUB_COUNT) << shift;
+		return base + (1L << shift) - 1;
+	}
+
+	/**
+	 * print count and percentiles in ms
+	 */
+	@Override
+	public String toString(){
+		return String.format("n=%d p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms", count,
+				percentile(50) / 1000.0, percentile(90) / 1000.0, percentile(99) / 1000.0, max / 1000.0);
+	}
+}
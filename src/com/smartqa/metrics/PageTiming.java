@@ -0,0 +1,376 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.UnsupportedCommandException;
+import org.openqa.selenium.WebDriver;
+
+import com.smartqa.utils.CommonUtils;
+
+/**
+ * <p>
+ * Performance of current page, read by one script call from W3C Navigation Timing Level 2
+ * and Resource Timing entries, legacy performance.timing is used when level 2 is missing.<br/>
+ * All times are ms since navigation start, -1 means browser doesn't support it.
+ * </p>
+ *
+ * <p>
+ * Page metrics:
+ * <ul>
+ * 	<li>dns.time - domain lookup</li>
+ * 	<li>tcp.time - connection, including TLS</li>
+ * 	<li>server.time - request sent to response end</li>
+ * 	<li>ttfb.time - first response byte</li>
+ * 	<li>dcl.time - DOMContentLoaded finished</li>
+ * 	<li>load.time - load event finished</li>
+ * 	<li>page.time - response end to load event finished</li>
+ * 	<li>lcp.time - largest contentful paint</li>
+ * 	<li>cls - cumulative layout shift, no unit</li>
+ * </ul>
+ * Resources are kept up to 200 per page.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class PageTiming {
+	private final static Logger LOG = LogManager.getLogger("PageTiming");
+
+	public final static String DNS_TIME = "dns.time";
+	public final static String TCP_TIME = "tcp.time";
+	public final static String SERVER_TIME = "server.time";
+	public final static String TTFB_TIME = "ttfb.time";
+	public final static String DCL_TIME = "dcl.time";
+	public final static String LOAD_TIME = "load.time";
+	public final static String PAGE_TIME = "page.time";
+	public final static String LCP_TIME = "lcp.time";
+	public final static String CLS = "cls";
+
+	//return [url, navigation array, lcp, cls, resource arrays], observers for LCP/CLS are kept in window
+	private final static String TIMING_SCRIPT = "var p = window.performance; if(!p) return null; " +
+			"var v = window.__smartqaVitals; if(!v){ v = window.__smartqaVitals = {lcp: -1, cls: -1}; " +
+			"v.onLcp = function(es){ for(var i = 0; i < es.length; i++) v.lcp = es[i].renderTime || es[i].loadTime || es[i].startTime; }; " +
+			"v.onCls = function(es){ for(var i = 0; i < es.length; i++) if(!es[i].hadRecentInput) v.cls = Math.max(v.cls, 0) + es[i].value; }; " +
+			"try{ v.lo = new PerformanceObserver(function(l){ v.onLcp(l.getEntries()); }); " +
+			"v.lo.observe({type: 'largest-contentful-paint', buffered: true}); }catch(e){ v.lo = null; } " +
+			"try{ v.co = new PerformanceObserver(function(l){ v.onCls(l.getEntries()); }); " +
+			"v.co.observe({type: 'layout-shift', buffered: true}); }catch(e){ v.co = null; } } " +
+			"if(v.lo) v.onLcp(v.lo.takeRecords()); if(v.co) v.onCls(v.co.takeRecords()); " +
+			"var n = p.getEntriesByType ? p.getEntriesByType('navigation')[0] : null, nav; " +
+			"if(n){ nav = [n.domainLookupStart, n.domainLookupEnd, n.connectStart, n.connectEnd, n.requestStart, " +
+			"n.responseStart, n.responseEnd, n.domContentLoadedEventEnd, n.loadEventEnd, n.transferSize || 0]; } " +
+			"else if(p.timing){ var t = p.timing, r = function(x){ return x ? x - t.navigationStart : 0; }; " +
+			"nav = [r(t.domainLookupStart), r(t.domainLookupEnd), r(t.connectStart), r(t.connectEnd), r(t.requestStart), " +
+			"r(t.responseStart), r(t.responseEnd), r(t.domContentLoadedEventEnd), r(t.loadEventEnd), 0]; } " +
+			"else return null; " +
+			"var res = [], rs = p.getEntriesByType ? p.getEntriesByType('resource') : []; " +
+			"for(var i = 0; i < rs.length && i < 200; i++){ var e = rs[i]; " +
+			"res.push([e.name, e.initiatorType, e.startTime, e.duration, " +
+			"e.responseStart > 0 ? e.responseStart - e.startTime : -1, e.transferSize || 0]); } " +
+			"return [location.href, nav, v.lcp, v.cls, res];";
+
+	private final long time = System.currentTimeMillis();
+	private String url;
+	private long dnsStart, dnsEnd, connectStart, connectEnd, requestStart, responseStart, responseEnd;
+	private long domContentLoaded, load, transferSize;
+	private long lcp = -1;
+	//requests dropped by blocking proxy while loading, -1 when no proxy
+	private long blocked = -1, blockedBytes = -1, savedTime = -1;
+	private double cls = -1;
+	private List<Resource> resources = new ArrayList<Resource>();
+
+	/**
+	 * private constructor, use {@link #collect(WebDriver)}
+	 */
+	private PageTiming(){
+	}
+
+	/**
+	 * read timing of current page in one script call
+	 *
+	 * @param driver - web driver instance
+	 * @return page timing, or null if browser can't tell
+	 */
+	public static PageTiming collect(WebDriver driver){
+		if(!(driver instanceof JavascriptExecutor))
+			return null;
+
+		try{
+			Object value = ((JavascriptExecutor)driver).executeScript(TIMING_SCRIPT);
+			if(!(value instanceof List))
+				return null;
+
+			List<?> result = (List<?>)value;
+			PageTiming timing = new PageTiming();
+			timing.url = String.valueOf(result.get(0));
+
+			List<?> nav = (List<?>)result.get(1);
+			timing.dnsStart = toLong(nav.get(0));
+			timing.dnsEnd = toLong(nav.get(1));
+			timing.connectStart = toLong(nav.get(2));
+			timing.connectEnd = toLong(nav.get(3));
+			timing.requestStart = toLong(nav.get(4));
+			timing.responseStart = toLong(nav.get(5));
+			timing.responseEnd = toLong(nav.get(6));
+			timing.domContentLoaded = toLong(nav.get(7));
+			timing.load = toLong(nav.get(8));
+			timing.transferSize = toLong(nav.get(9));
+			timing.lcp = toLong(result.get(2));
+			timing.cls = toDouble(result.get(3));
+
+			for(Object item : (List<?>)result.get(4)){
+				List<?> entry = (List<?>)item;
+				timing.resources.add(new Resource(String.valueOf(entry.get(0)), String.valueOf(entry.get(1)),
+						toLong(entry.get(2)), toLong(entry.get(3)), toLong(entry.get(4)), toLong(entry.get(5))));
+			}
+
+			return timing;
+		}catch(UnsupportedCommandException ex){
+			return null;
+		}catch(Exception ex){
+			LOG.warn("failed to resolve performance data, caused by "+ex.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * page metrics by name, see class doc for names
+	 *
+	 * @return metric map, -1 if not supported
+	 */
+	public Map<String, Long> toMap(){
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		map.put(DNS_TIME, span(dnsStart, dnsEnd));
+		map.put(TCP_TIME, span(connectStart, connectEnd));
+		map.put(SERVER_TIME, span(requestStart, responseEnd));
+		map.put(TTFB_TIME, responseStart > 0 ? responseStart : -1);
+		map.put(DCL_TIME, domContentLoaded > 0 ? domContentLoaded : -1);
+		map.put(LOAD_TIME, load > 0 ? load : -1);
+		map.put(PAGE_TIME, span(responseEnd, load));
+		map.put(LCP_TIME, lcp);
+		return map;
+	}
+
+	/**
+	 * one line JSON of this sample, with scenario name
+	 *
+	 * @param scenario - scenario running, or null
+	 * @return JSON string
+	 */
+	public String toJson(String scenario){
+		StringBuilder buf = new StringBuilder(256 + resources.size() * 128);
+		buf.append("{\"time\":").append(time);
+		buf.append(",\"scenario\":").append(CommonUtils.quote(scenario));
+		buf.append(",\"url\":").append(CommonUtils.quote(url));
+		for(Map.Entry<String, Long> entry : toMap().entrySet())
+			buf.append(",\"").append(entry.getKey()).append("\":").append(entry.getValue());
+		buf.append(",\"").append(CLS).append("\":").append(cls < 0 ? "-1" : String.format(Locale.ROOT, "%.4f", cls));
+		buf.append(",\"size\":").append(transferSize);
+		if(blocked >= 0){
+			buf.append(",\"blocked\":").append(blocked);
+			buf.append(",\"blockedBytes\":").append(blockedBytes);
+			buf.append(",\"savedTime\":").append(savedTime);
+		}
+
+		buf.append(",\"resources\":[");
+		for(int i = 0; i < resources.size(); i++){
+			Resource resource = resources.get(i);
+			if(i > 0)
+				buf.append(',');
+			buf.append("{\"name\":").append(CommonUtils.quote(resource.name));
+			buf.append(",\"type\":").append(CommonUtils.quote(resource.type));
+			buf.append(",\"start\":").append(resource.start);
+			buf.append(",\"duration\":").append(resource.duration);
+			buf.append(",\"ttfb\":").append(resource.ttfb);
+			buf.append(",\"size\":").append(resource.size).append('}');
+		}
+
+		return buf.append("]}").toString();
+	}
+
+	/**
+	 * metric by name, see class doc for names
+	 *
+	 * @param name - metric name
+	 * @return value, -1 if not supported or unknown name
+	 */
+	public long get(String name){
+		Long value = toMap().get(name);
+		return value == null ? -1 : value;
+	}
+
+	/**
+	 * sample taken time, epoch ms
+	 *
+	 * @return time
+	 */
+	public long getTime(){
+		return time;
+	}
+
+	public String getUrl(){
+		return url;
+	}
+
+	/**
+	 * cumulative layout shift
+	 *
+	 * @return cls, -1 if not supported
+	 */
+	public double getCls(){
+		return cls;
+	}
+
+	/**
+	 * bytes of main document over network, 0 if cached or not supported
+	 *
+	 * @return transfer size
+	 */
+	public long getTransferSize(){
+		return transferSize;
+	}
+
+	/**
+	 * set requests dropped by blocking proxy while page loaded, bytes and time are estimated
+	 *
+	 * @param requests - blocked requests
+	 * @param bytes - bytes not downloaded
+	 * @param time - fetch time saved, unit: ms
+	 */
+	public void setBlocked(long requests, long bytes, long time){
+		this.blocked = requests;
+		this.blockedBytes = bytes;
+		this.savedTime = time;
+	}
+
+	/**
+	 * requests dropped by blocking proxy while page loaded
+	 *
+	 * @return blocked requests, -1 when no proxy
+	 */
+	public long getBlocked(){
+		return blocked;
+	}
+
+	public long getBlockedBytes(){
+		return blockedBytes;
+	}
+
+	public long getSavedTime(){
+		return savedTime;
+	}
+
+	public List<Resource> getResources(){
+		return Collections.unmodifiableList(resources);
+	}
+
+	/**
+	 * print url and page metrics
+	 */
+	@Override
+	public String toString(){
+		return url + " " + toMap() + ", cls=" + (cls < 0 ? "-1" : String.format(Locale.ROOT, "%.4f", cls)) + ", resources=" + resources.size();
+	}
+
+	private static long span(long start, long end){
+		return end > 0 && end >= start ? end - start : -1;
+	}
+
+	private static long toLong(Object value){
+		return value instanceof Number ? Math.round(((Number)value).doubleValue()) : -1;
+	}
+
+	private static double toDouble(Object value){
+		return value instanceof Number ? ((Number)value).doubleValue() : -1;
+	}
+
+	/**
+	 * timing of one resource loaded by page, unit: ms
+	 */
+	public static class Resource{
+		private final String name;
+		private final String type;
+		private final long start;
+		private final long duration;
+		private final long ttfb;
+		private final long size;
+
+		Resource(String name, String type, long start, long duration, long ttfb, long size){
+			this.name = name;
+			this.type = type;
+			this.start = start;
+			this.duration = duration;
+			this.ttfb = ttfb;
+			this.size = size;
+		}
+
+		/**
+		 * resource url
+		 *
+		 * @return name
+		 */
+		public String getName(){
+			return name;
+		}
+
+		/**
+		 * initiator type, like script, img, css, xmlhttprequest
+		 *
+		 * @return type
+		 */
+		public String getType(){
+			return type;
+		}
+
+		public long getStart(){
+			return start;
+		}
+
+		public long getDuration(){
+			return duration;
+		}
+
+		/**
+		 * first byte time since resource start, -1 for cross origin resource without Timing-Allow-Origin
+		 *
+		 * @return ttfb
+		 */
+		public long getTtfb(){
+			return ttfb;
+		}
+
+		/**
+		 * bytes over network, 0 if cached or cross origin
+		 *
+		 * @return size
+		 */
+		public long getSize(){
+			return size;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.metrics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>
+ * Local time series of page timing, one JSON line appended for each navigation, see {@link PageTiming#toJson(String)}.<br/>
+ * File is set by -Dsmartqa.timing, default is timing/page.jsonl, -Dsmartqa.timing=false disables it.
+ * Each line is flushed right away, so a crashed run keeps all samples before it.
+ * </p>
+ *
+ * <p>
+ * Forked worker JVM calls {@link #hold()} and sends its lines back with each scenario,
+ * so only engine JVM writes the file and lines of different JVMs never mix.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class TimingSeries {
+	private final static Logger LOG = LogManager.getLogger("TimingSeries");
+	private static TimingSeries instance = null;
+
+	private final File file;
+	private Writer writer;
+	private long samples = 0;
+	//lines kept for engine JVM instead of written, null when writing
+	private List<String> held = null;
+
+	/**
+	 * private constructor, use {@link #getInstance()}
+	 */
+	private TimingSeries(File file){
+		this.file = file;
+	}
+
+	/**
+	 * get singleton instance
+	 *
+	 * @return TimingSeries, null if disabled
+	 */
+	public static synchronized TimingSeries getInstance(){
+		String name = System.getProperty("smartqa.timing", "timing/page.jsonl");
+		if("false".equalsIgnoreCase(name))
+			return null;
+
+		if(instance == null)
+			instance = new TimingSeries(new File(name));
+		return instance;
+	}
+
+	/**
+	 * append one sample
+	 *
+	 * @param scenario - scenario running, or null
+	 * @param timing - page timing
+	 */
+	public synchronized void append(String scenario, PageTiming timing){
+		if(timing == null)
+			return;
+
+		List<String> lines = new ArrayList<String>(1);
+		lines.add(timing.toJson(scenario));
+		append(lines);
+	}
+
+	/**
+	 * append lines taken from another JVM by {@link #take()}
+	 *
+	 * @param lines - JSON lines
+	 */
+	public synchronized void append(List<String> lines){
+		if(lines.isEmpty())
+			return;
+		if(held != null){
+			held.addAll(lines);
+			return;
+		}
+
+		try{
+			if(writer == null){
+				if(file.getParentFile() != null)
+					file.getParentFile().mkdirs();
+				writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+			}
+
+			for(String line : lines){
+				writer.write(line);
+				writer.write('\n');
+				samples++;
+			}
+			writer.flush();
+		}catch(IOException ex){
+			LOG.warn("failed to write page timing into "+file+", caused by "+ex.getMessage());
+		}
+	}
+
+	/**
+	 * keep lines in memory from now on, engine JVM writes them
+	 */
+	public synchronized void hold(){
+		if(held == null)
+			held = new ArrayList<String>();
+	}
+
+	/**
+	 * take lines kept since last call
+	 *
+	 * @return JSON lines, empty when not holding
+	 */
+	public synchronized List<String> take(){
+		if(held == null || held.isEmpty())
+			return new ArrayList<String>();
+
+		List<String> taken = held;
+		held = new ArrayList<String>();
+		return taken;
+	}
+
+	/**
+	 * close file, next append opens it again
+	 */
+	public synchronized void close(){
+		if(writer == null)
+			return;
+
+		try{
+			writer.close();
+			LOG.info(samples+" page timing samples written into "+file);
+		}catch(IOException ex){
+			LOG.warn("failed to close "+file+", caused by "+ex.getMessage());
+		}finally{
+			writer = null;
+		}
+	}
+}
@@ -1,21 +1,455 @@
-/*
- * Copyright 2012 Software Freedom Conservancy.
- *
- *  Licensed under the Apache License, Version 2.0 (the "License");
- *  you may not use this file except in compliance with the License.
- *  You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- *  Unless required by applicable law or agreed to in writing, software
- *  distributed under the License is distributed on an "AS IS" BASIS,
- *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- *  See the License for the specific language governing permissions and
- *  limitations under the License.
- *
- */
-package com.smartqa.report;
-
-public class EmailReporter {
-	//TODO
-}
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.report;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.smartqa.engine.Scenario;
+
+/**
+ * <p>
+ * Mail one digest of the whole run instead of one mail for each scenario.<br/>
+ * Finished scenarios are folded into counters as they come: passed, failed and aborted,
+ * the slowest scenarios, and failures grouped by message with numbers and quoted text masked,
+ * so memory stays small however many scenarios run.
+ * Percentile budget verdicts are listed in their own part, they are not counted as scenarios.
+ * </p>
+ *
+ * <p>
+ * {@link #send()} renders and sends digest on a daemon thread, engine goes on shutting down meanwhile
+ * and only waits for it in {@link #close()}. Mail goes through plain SMTP configured in config/smartqa.ini,
+ * pointing it at a local test SMTP server is enough to check the digest:
+ * </p>
+ *
+ * <p style="color:gray">
+ * Mail_Host = localhost<br/>
+ * Mail_Port = 25<br/>
+ * Mail_From = smartqa@localhost<br/>
+ * Mail_To = qa@localhost, dev@localhost
+ * </p>
+ *
+ * <p>
+ * Nothing is sent when Mail_Host or Mail_To is empty. No authentication or TLS.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class EmailReporter {
+	private final static Logger LOG = LogManager.getLogger("EmailReporter");
+	private final static int SLOWEST = 5;
+	private final static int GROUPS = 20;
+	private final static int EXAMPLES = 3;
+	private final static int TIMEOUT = 10 * 1000;
+	private final static Comparator<Slow> BY_DURATION = new Comparator<Slow>(){
+		@Override
+		public int compare(Slow a, Slow b){
+			return Long.compare(a.duration, b.duration);
+		}
+	};
+	private static EmailReporter instance = null;
+
+	private final Properties mailProp = new Properties();
+	private final long begin = System.currentTimeMillis();
+	//min heap, the fastest of kept ones is dropped first
+	private final PriorityQueue<Slow> slowest = new PriorityQueue<Slow>(SLOWEST + 1, BY_DURATION);
+	private final Map<String, Group> groups = new LinkedHashMap<String, Group>();
+	private long passed = 0, failed = 0, aborted = 0, ungrouped = 0;
+	//percentile budget verdict lines, one for each breach
+	private final List<String> verdicts = new ArrayList<String>();
+	private long failedVerdicts = 0;
+	private long scenarioTime = 0;
+	private Thread sender;
+
+	/**
+	 * private constructor, use {@link #getInstance()}
+	 */
+	private EmailReporter(){
+		File config = new File("config/smartqa.ini");
+		if(!config.isFile())
+			return;
+
+		try{
+			FileInputStream in = new FileInputStream(config);
+			try{
+				mailProp.load(in);
+			}finally{
+				in.close();
+			}
+		}catch(IOException ex){
+			LOG.warn("failed to read mail settings, caused by "+ex.getMessage());
+		}
+	}
+
+	/**
+	 * get singleton instance
+	 *
+	 * @return EmailReporter
+	 */
+	public static synchronized EmailReporter getInstance(){
+		if(instance == null)
+			instance = new EmailReporter();
+		return instance;
+	}
+
+	/**
+	 * mail settings given or not
+	 *
+	 * @return true if digest will be sent
+	 */
+	public boolean isEnabled(){
+		return StringUtils.isNotBlank(mailProp.getProperty("Mail_Host")) && !recipients().isEmpty();
+	}
+
+	/**
+	 * fold finished scenario into digest, only name, result and duration are kept
+	 *
+	 * @param scenario - finished scenario
+	 */
+	public synchronized void add(Scenario scenario){
+		String result = scenario.getResult() == null ? "" : scenario.getResult();
+		scenarioTime += scenario.getDuration();
+
+		slowest.add(new Slow(scenario.getName(), result, scenario.getDuration()));
+		if(slowest.size() > SLOWEST)
+			slowest.poll();
+
+		boolean abort = "abort".equals(scenario.getStatus());
+		if(abort)
+			aborted++;
+		else if(result.startsWith("failed"))
+			failed++;
+		else{
+			passed++;
+			return;
+		}
+
+		String signature = signature(result);
+		Group group = groups.get(signature);
+		if(group == null){
+			if(groups.size() >= GROUPS){
+				ungrouped++;
+				return;
+			}
+			group = new Group(signature);
+			groups.put(signature, group);
+		}
+		group.count++;
+		if(group.examples.size() < EXAMPLES && !group.examples.contains(scenario.getName()))
+			group.examples.add(scenario.getName());
+	}
+
+	/**
+	 * add percentile budget verdict of scenario, judged after all its runs
+	 *
+	 * @param scenario - scenario name
+	 * @param breaches - breaches, each starts with "fail:" or "warn:"
+	 */
+	public synchronized void addVerdict(String scenario, List<String> breaches){
+		boolean fail = false;
+		for(String breach : breaches){
+			fail |= breach.startsWith("fail:");
+			verdicts.add(scenario + "  " + breach);
+		}
+		if(fail)
+			failedVerdicts++;
+	}
+
+	/**
+	 * render and send digest on background thread, returns at once,
+	 * call it after all scenarios finished
+	 */
+	public synchronized void send(){
+		if(sender != null)
+			return;
+		if(!isEnabled()){
+			LOG.debug("No Mail_Host or Mail_To in smartqa.ini, run digest not sent");
+			return;
+		}
+		if(passed + failed + aborted == 0){
+			LOG.info("No scenario finished, run digest not sent");
+			return;
+		}
+
+		sender = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					String subject, body;
+					synchronized(EmailReporter.this){
+						subject = subject();
+						body = render();
+					}
+					deliver(subject, body);
+					LOG.info("Run digest mailed to "+StringUtils.join(recipients(), ", "));
+				}catch(Exception ex){
+					LOG.warn("failed to mail run digest, caused by "+ex.getMessage());
+				}
+			}
+		}, "email-reporter");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/**
+	 * wait digest sent, at most 30 seconds
+	 */
+	public void close(){
+		Thread thread;
+		synchronized(this){
+			thread = sender;
+		}
+		if(thread == null)
+			return;
+
+		try{
+			thread.join(3 * TIMEOUT);
+			if(thread.isAlive())
+				LOG.warn("Run digest not sent in time");
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * subject line, like "[SmartQA] 18/20 passed, 1 failed, 1 aborted"
+	 */
+	private String subject(){
+		StringBuilder buf = new StringBuilder("[SmartQA] ");
+		buf.append(passed).append('/').append(passed + failed + aborted).append(" passed");
+		if(failed > 0)
+			buf.append(", ").append(failed).append(" failed");
+		if(aborted > 0)
+			buf.append(", ").append(aborted).append(" aborted");
+		if(failedVerdicts > 0)
+			buf.append(", ").append(failedVerdicts).append(" over budget");
+		return buf.toString();
+	}
+
+	/**
+	 * plain text digest, called with lock held
+	 */
+	private String render(){
+		StringBuilder buf = new StringBuilder(1024);
+		buf.append("SmartQA run digest, ").append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(begin)))
+			.append(" on ").append(host()).append("\n\n");
+		buf.append("Scenarios: ").append(passed + failed + aborted).append(", passed ").append(passed)
+			.append(", failed ").append(failed).append(", aborted ").append(aborted).append('\n');
+		buf.append("Run time: ").append(seconds(System.currentTimeMillis() - begin))
+			.append(", scenario time ").append(seconds(scenarioTime)).append("\n\n");
+
+		List<Slow> slow = new ArrayList<Slow>(slowest);
+		Collections.sort(slow, Collections.reverseOrder(BY_DURATION));
+		buf.append("Slowest scenarios:\n");
+		for(Slow entry : slow)
+			buf.append(String.format(Locale.ROOT, "  %10s  %s  %s\n", seconds(entry.duration), entry.name,
+					StringUtils.abbreviate(entry.result, 80)));
+
+		if(!groups.isEmpty()){
+			List<Group> sorted = new ArrayList<Group>(groups.values());
+			Collections.sort(sorted, new Comparator<Group>(){
+				@Override
+				public int compare(Group a, Group b){
+					return Long.compare(b.count, a.count);
+				}
+			});
+
+			buf.append("\nFailure groups:\n");
+			for(Group group : sorted){
+				buf.append(String.format(Locale.ROOT, "  %5dx  %s\n", group.count, group.signature));
+				buf.append("          ").append(StringUtils.join(group.examples, ", "))
+					.append(group.count > group.examples.size() ? ", ..." : "").append('\n');
+			}
+			if(ungrouped > 0)
+				buf.append("  ").append(ungrouped).append(" more failures not grouped\n");
+		}
+
+		if(!verdicts.isEmpty()){
+			buf.append("\nPercentile budgets:\n");
+			for(String verdict : verdicts)
+				buf.append("  ").append(verdict).append('\n');
+		}
+
+		buf.append("\nFull results: ").append(ResultSink.defaultFolder().getAbsolutePath()).append('\n');
+		return buf.toString();
+	}
+
+	/**
+	 * send one plain text mail, SMTP dialog of RFC 5321 without extensions
+	 */
+	private void deliver(String subject, String body) throws IOException{
+		String from = mailProp.getProperty("Mail_From", "smartqa@" + host()).trim();
+		List<String> to = recipients();
+
+		Socket socket = new Socket();
+		try{
+			socket.connect(new InetSocketAddress(mailProp.getProperty("Mail_Host").trim(),
+					Integer.parseInt(mailProp.getProperty("Mail_Port", "25").trim())), TIMEOUT);
+			socket.setSoTimeout(TIMEOUT);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+
+			reply(in, 220);
+			if(command(in, out, "EHLO " + host()) != 250)
+				expect(command(in, out, "HELO " + host()), 250);
+			expect(command(in, out, "MAIL FROM:<" + from + ">"), 250);
+			for(String rcpt : to)
+				expect(command(in, out, "RCPT TO:<" + rcpt + ">"), 250);
+			expect(command(in, out, "DATA"), 354);
+
+			StringBuilder data = new StringBuilder(body.length() + 512);
+			data.append("From: ").append(from).append("\r\n");
+			data.append("To: ").append(StringUtils.join(to, ", ")).append("\r\n");
+			data.append("Subject: ").append(subject).append("\r\n");
+			data.append("Date: ").append(new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US).format(new Date())).append("\r\n");
+			data.append("MIME-Version: 1.0\r\n");
+			data.append("Content-Type: text/plain; charset=UTF-8\r\n");
+			data.append("Content-Transfer-Encoding: 8bit\r\n\r\n");
+			for(String line : body.split("\n", -1)){
+				//dot stuffing, a line of single dot ends DATA
+				if(line.startsWith("."))
+					data.append('.');
+				data.append(line).append("\r\n");
+			}
+			data.append(".");
+			expect(command(in, out, data.toString()), 250);
+
+			command(in, out, "QUIT");
+		}finally{
+			socket.close();
+		}
+	}
+
+	/**
+	 * write one command line and read its reply code
+	 */
+	private static int command(BufferedReader in, Writer out, String line) throws IOException{
+		out.write(line);
+		out.write("\r\n");
+		out.flush();
+		return reply(in, 0);
+	}
+
+	/**
+	 * read reply, multiline reply is like "250-first", "250 last"
+	 */
+	private static int reply(BufferedReader in, int expected) throws IOException{
+		String line;
+		do{
+			line = in.readLine();
+			if(line == null)
+				throw new IOException("SMTP server closed connection");
+		}while(line.length() > 3 && line.charAt(3) == '-');
+
+		int code;
+		try{
+			code = Integer.parseInt(line.substring(0, Math.min(3, line.length())));
+		}catch(NumberFormatException ex){
+			throw new IOException("bad SMTP reply: "+line);
+		}
+		if(expected > 0 && code != expected)
+			throw new IOException("SMTP server replied: "+line);
+		return code;
+	}
+
+	private static void expect(int code, int expected) throws IOException{
+		if(code != expected)
+			throw new IOException("SMTP server replied "+code+", expected "+expected);
+	}
+
+	private List<String> recipients(){
+		List<String> to = new ArrayList<String>();
+		for(String rcpt : mailProp.getProperty("Mail_To", "").split("[,;]"))
+			if(StringUtils.isNotBlank(rcpt))
+				to.add(rcpt.trim());
+		return to;
+	}
+
+	/**
+	 * failure message with numbers and quoted text masked, so same failure of different runs falls into one group
+	 */
+	private static String signature(String result){
+		String line = result.split("\r?\n", 2)[0];
+		line = line.replaceAll("'[^']*'", "'*'").replaceAll("\"[^\"]*\"", "\"*\"").replaceAll("\\d+(\\.\\d+)?", "#");
+		return StringUtils.abbreviate(line.replaceAll("\\s+", " ").trim(), 120);
+	}
+
+	private static String seconds(long ms){
+		return String.format(Locale.ROOT, "%.1fs", ms / 1000.0);
+	}
+
+	private static String host(){
+		try{
+			return InetAddress.getLocalHost().getHostName();
+		}catch(IOException ex){
+			return "localhost";
+		}
+	}
+
+	/**
+	 * one of slowest scenarios
+	 */
+	private static class Slow{
+		final String name;
+		final String result;
+		final long duration;
+
+		Slow(String name, String result, long duration){
+			this.name = name;
+			this.result = result;
+			this.duration = duration;
+		}
+	}
+
+	/**
+	 * failures with same signature
+	 */
+	private static class Group{
+		final String signature;
+		final List<String> examples = new ArrayList<String>();
+		long count = 0;
+
+		Group(String signature){
+			this.signature = signature;
+		}
+	}
+}
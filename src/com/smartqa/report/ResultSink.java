@@ -0,0 +1,300 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.report;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.smartqa.engine.Scenario;
+import com.smartqa.metrics.ActionMetrics;
+import com.smartqa.utils.CommonUtils;
+
+/**
+ * <p>
+ * Streaming result writer, each scenario is written as soon as it finished into:
+ * <ul>
+ * 	<li>results.jsonl - one JSON line for each scenario</li>
+ * 	<li>junit.xml - JUnit XML report, one testcase for each scenario</li>
+ * </ul>
+ * Folder is set by -Dsmartqa.result, default is result. Both files are started over for each run.
+ * </p>
+ *
+ * <p>
+ * Percentile budget verdicts judged after all runs are not scenarios: they are JSON lines with "type":"budget",
+ * and one system-out of the test suite, not counted as tests.
+ * </p>
+ *
+ * <p>
+ * Nothing is kept in memory after a scenario is written.
+ * JUnit XML is valid after every scenario: closing tag is written again after each testcase,
+ * and counters in testsuite tag are fixed width numbers updated in place, so a killed run
+ * still leaves a report CI can read.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class ResultSink {
+	private final static Logger LOG = LogManager.getLogger("ResultSink");
+	private final static String FOOTER = "</testsuite>\n";
+	private final static int COUNTER_WIDTH = 10;
+
+	private final File folder;
+	private Writer jsonl;
+	private RandomAccessFile junit;
+	private long bodyEnd;
+	private long testsAt, failuresAt, errorsAt;
+	private long tests = 0, failures = 0, errors = 0;
+
+	/**
+	 * create result files in folder
+	 *
+	 * @param folder - result folder
+	 * @throws IOException if files can't be created
+	 */
+	public ResultSink(File folder) throws IOException{
+		this.folder = folder;
+		folder.mkdirs();
+
+		jsonl = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(folder, "results.jsonl")), "UTF-8"));
+
+		File xml = new File(folder, "junit.xml");
+		xml.delete();
+		junit = new RandomAccessFile(xml, "rw");
+		StringBuilder header = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		header.append("<testsuite name=\"smartqa\" timestamp=\"")
+			.append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date())).append("\" tests=\"");
+		testsAt = header.length();
+		header.append(counter(0)).append("\" failures=\"");
+		failuresAt = header.length();
+		header.append(counter(0)).append("\" errors=\"");
+		errorsAt = header.length();
+		header.append(counter(0)).append("\">\n");
+
+		junit.write(header.toString().getBytes("UTF-8"));
+		bodyEnd = junit.getFilePointer();
+		junit.write(FOOTER.getBytes("UTF-8"));
+	}
+
+	/**
+	 * default result folder: -Dsmartqa.result, or "result"
+	 *
+	 * @return result folder
+	 */
+	public static File defaultFolder(){
+		return new File(System.getProperty("smartqa.result", "result"));
+	}
+
+	/**
+	 * write finished scenario into both files and flush them
+	 *
+	 * @param scenario - finished scenario
+	 */
+	public synchronized void append(Scenario scenario){
+		if(jsonl == null)
+			return;
+
+		try{
+			jsonl.write(toJson(scenario));
+			jsonl.write('\n');
+			jsonl.flush();
+
+			tests++;
+			if("abort".equals(scenario.getStatus()))
+				errors++;
+			else if(scenario.getResult() != null && scenario.getResult().startsWith("failed"))
+				failures++;
+
+			junit.seek(bodyEnd);
+			junit.write(toXml(scenario).getBytes("UTF-8"));
+			bodyEnd = junit.getFilePointer();
+			junit.write(FOOTER.getBytes("UTF-8"));
+			junit.setLength(junit.getFilePointer());
+
+			junit.seek(testsAt);
+			junit.write(counter(tests).getBytes("UTF-8"));
+			junit.seek(failuresAt);
+			junit.write(counter(failures).getBytes("UTF-8"));
+			junit.seek(errorsAt);
+			junit.write(counter(errors).getBytes("UTF-8"));
+		}catch(IOException ex){
+			LOG.warn("failed to write result of "+scenario.getName()+", caused by "+ex.getMessage());
+		}
+	}
+
+	/**
+	 * write percentile budget verdicts, call it once after all scenarios
+	 *
+	 * @param verdicts - breaches of each scenario, each starts with "fail:" or "warn:"
+	 */
+	public synchronized void appendVerdicts(Map<String, List<String>> verdicts){
+		if(jsonl == null)
+			return;
+
+		try{
+			StringBuilder out = new StringBuilder();
+			for(Map.Entry<String, List<String>> verdict : verdicts.entrySet()){
+				boolean failed = false;
+				StringBuilder buf = new StringBuilder(256);
+				buf.append("{\"type\":\"budget\",\"name\":").append(CommonUtils.quote(verdict.getKey())).append(",\"budgets\":[");
+				for(int i = 0; i < verdict.getValue().size(); i++){
+					String breach = verdict.getValue().get(i);
+					failed |= breach.startsWith("fail:");
+					buf.append(i > 0 ? "," : "").append(CommonUtils.quote(breach));
+					out.append(verdict.getKey()).append(" budget ").append(breach).append('\n');
+				}
+				buf.append("],\"result\":").append(CommonUtils.quote(failed ? "failed" : "warn")).append('}');
+				jsonl.write(buf.toString());
+				jsonl.write('\n');
+			}
+			jsonl.flush();
+
+			junit.seek(bodyEnd);
+			junit.write(("  <system-out>" + escape(out.toString()) + "</system-out>\n").getBytes("UTF-8"));
+			bodyEnd = junit.getFilePointer();
+			junit.write(FOOTER.getBytes("UTF-8"));
+			junit.setLength(junit.getFilePointer());
+		}catch(IOException ex){
+			LOG.warn("failed to write budget verdicts, caused by "+ex.getMessage());
+		}
+	}
+
+	/**
+	 * close result files
+	 */
+	public synchronized void close(){
+		if(jsonl == null)
+			return;
+
+		try{
+			jsonl.close();
+			junit.close();
+			LOG.info(tests+" results written into "+folder+", "+failures+" failed, "+errors+" aborted");
+		}catch(IOException ex){
+			LOG.warn("failed to close result files, caused by "+ex.getMessage());
+		}finally{
+			jsonl = null;
+			junit = null;
+		}
+	}
+
+	/**
+	 * one JSON line of scenario
+	 */
+	private static String toJson(Scenario scenario){
+		StringBuilder buf = new StringBuilder(256);
+		buf.append("{\"name\":").append(CommonUtils.quote(scenario.getName()));
+		buf.append(",\"status\":").append(CommonUtils.quote(scenario.getStatus()));
+		buf.append(",\"result\":").append(CommonUtils.quote(scenario.getResult()));
+		buf.append(",\"start\":").append(scenario.getStart());
+		buf.append(",\"duration\":").append(scenario.getDuration());
+		buf.append(",\"retries\":").append(scenario.getRetries());
+
+		ActionMetrics metrics = scenario.getMetrics();
+		if(metrics != null)
+			buf.append(",\"steps\":").append(metrics.getSteps())
+				.append(",\"locate\":").append(metrics.getLocate())
+				.append(",\"action\":").append(metrics.getAction())
+				.append(",\"sync\":").append(metrics.getSync());
+
+		buf.append(",\"budgets\":[");
+		for(int i = 0; i < scenario.getBudgets().size(); i++)
+			buf.append(i > 0 ? "," : "").append(CommonUtils.quote(scenario.getBudgets().get(i)));
+		buf.append("]");
+
+		buf.append(",\"cause\":").append(CommonUtils.quote(scenario.getCause()));
+		return buf.append('}').toString();
+	}
+
+	/**
+	 * one testcase element of scenario, class name is scenario folder
+	 */
+	private static String toXml(Scenario scenario){
+		String name = scenario.getName();
+		int slash = name.lastIndexOf('/');
+		String className = slash > 0 ? name.substring(0, slash).replace('/', '.') : "scenario";
+
+		StringBuilder buf = new StringBuilder(256);
+		buf.append("  <testcase classname=\"").append(escape(className))
+			.append("\" name=\"").append(escape(name.substring(slash + 1)))
+			.append("\" time=\"").append(String.format(Locale.ROOT, "%.3f", scenario.getDuration() / 1000.0)).append("\">\n");
+
+		String result = scenario.getResult() == null ? "" : scenario.getResult();
+		String detail = scenario.getCause() == null ? result : scenario.getCause();
+		if("abort".equals(scenario.getStatus()))
+			buf.append("    <error message=\"").append(escape(result)).append("\">").append(escape(detail)).append("</error>\n");
+		else if(result.startsWith("failed"))
+			buf.append("    <failure message=\"").append(escape(result)).append("\">").append(escape(detail)).append("</failure>\n");
+
+		StringBuilder out = new StringBuilder();
+		if(scenario.getMetrics() != null && scenario.getMetrics().getSteps() > 0)
+			out.append(scenario.getMetrics()).append('\n');
+		for(String budget : scenario.getBudgets())
+			out.append("budget ").append(budget).append('\n');
+		if(out.length() > 0)
+			buf.append("    <system-out>").append(escape(out.toString())).append("</system-out>\n");
+
+		return buf.append("  </testcase>\n").toString();
+	}
+
+	/**
+	 * escape XML text and attribute, characters not allowed in XML are dropped
+	 */
+	private static String escape(String src){
+		if(src == null)
+			return "";
+
+		StringBuilder buf = new StringBuilder(src.length() + 16);
+		for(int i = 0; i < src.length(); i++){
+			char c = src.charAt(i);
+			if(c == '&')
+				buf.append("&amp;");
+			else if(c == '<')
+				buf.append("&lt;");
+			else if(c == '>')
+				buf.append("&gt;");
+			else if(c == '"')
+				buf.append("&quot;");
+			else if(c >= 0x20 || c == '\n' || c == '\r' || c == '\t')
+				buf.append(c);
+		}
+
+		return buf.toString();
+	}
+
+	private static String counter(long value){
+		String digits = String.valueOf(value);
+		StringBuilder buf = new StringBuilder(COUNTER_WIDTH);
+		for(int i = digits.length(); i < COUNTER_WIDTH; i++)
+			buf.append('0');
+		return buf.append(digits).toString();
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.screenshot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * In-memory ring of last N step screenshots.<br/>
+ * Each slot keeps the array of its capture as it is, without copy, and lets it go when overwritten,
+ * so a long scenario holds at most N screenshots. Nothing touches disk until {@link #flush(String)},
+ * which is called only when scenario failed.
+ * </p>
+ *
+ * <p>
+ * Not thread safe, each web engine owns its ring.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class ScreenshotRing {
+	private final Slot[] slots;
+	private int next = 0;
+	private long count = 0;
+
+	/**
+	 * create ring
+	 *
+	 * @param size - max screenshots kept
+	 */
+	public ScreenshotRing(int size){
+		slots = new Slot[Math.max(1, size)];
+		for(int i = 0; i < slots.length; i++)
+			slots[i] = new Slot();
+	}
+
+	/**
+	 * keep capture, the oldest one is dropped when ring is full
+	 *
+	 * @param png - captured screenshot, kept as it is, caller must not change it
+	 * @param label - step description, like "click default.login"
+	 */
+	public void add(byte[] png, String label){
+		Slot slot = slots[next];
+		slot.data = png;
+		slot.label = label;
+
+		next = (next + 1) % slots.length;
+		count++;
+	}
+
+	/**
+	 * number of screenshots kept now
+	 *
+	 * @return size
+	 */
+	public int size(){
+		return (int)Math.min(count, slots.length);
+	}
+
+	/**
+	 * write kept screenshots oldest first by {@link ScreenshotWriter}, then empty ring
+	 *
+	 * @param folder - target folder without trailing slash, like "screenshot/failure/login"
+	 * @return written paths
+	 */
+	public List<String> flush(String folder){
+		List<String> paths = new ArrayList<String>();
+		int size = size();
+		long first = count - size;
+		for(int i = 0; i < size; i++){
+			Slot slot = slots[(int)((first + i) % slots.length)];
+			String name = String.format("%s/%03d_%s", folder, first + i + 1, slot.label.replaceAll("[^\\w.\\-]+", "_"));
+			if(name.length() > folder.length() + 80)
+				name = name.substring(0, folder.length() + 80);
+			paths.add(ScreenshotWriter.getInstance().write(slot.data, name));
+		}
+
+		clear();
+		return paths;
+	}
+
+	/**
+	 * drop kept screenshots
+	 */
+	public void clear(){
+		for(Slot slot : slots){
+			slot.data = null;
+			slot.label = null;
+		}
+		next = 0;
+		count = 0;
+	}
+
+	/**
+	 * one kept screenshot
+	 */
+	private static class Slot{
+		byte[] data;
+		String label;
+	}
+}
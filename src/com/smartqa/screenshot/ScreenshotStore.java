@@ -0,0 +1,293 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * <p>
+ * Content addressed screenshot store, used by {@link ScreenshotWriter}.<br/>
+ * Each distinct capture is written once as screenshot/store/&lt;2 chars&gt;/&lt;sha1&gt;.&lt;ext&gt;,
+ * sha1 is hash of captured PNG bytes. Every capture gets a small reference record
+ * at its own path instead, so screenshot timeline of scenario stays the same, for example:
+ * </p>
+ *
+ * <p style="color:gray">
+ * blob = store/3f/3f2a...c1.png<br/>
+ * sha1 = 3f2a...c1<br/>
+ * match = similar<br/>
+ * distance = 2
+ * </p>
+ *
+ * <p>
+ * match is "new", "exact" for identical capture, or "similar" when -Dsmartqa.screenshot.similar=N is set
+ * and difference hash (dHash, 64 bits) of capture is within N bits of a stored one.
+ * Blob path is relative to screenshot folder. Known blobs are listed in store/index, so dedup works across runs.
+ * Each forked worker JVM appends to its own store/index.&lt;slot&gt; instead, and all index files are read at open.
+ * New blob is written into a temp file beside it and renamed into place, so an existing blob is always complete,
+ * also for other JVMs sharing the store.
+ * </p>
+ *
+ * <p>
+ * Not thread safe, only used by writer thread.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class ScreenshotStore {
+	private final static Logger LOG = LogManager.getLogger("ScreenshotStore");
+
+	private final File root;
+	private final int distance;
+	private final File indexFile;
+	private final Map<String, String> blobs = new HashMap<String, String>();
+	private final List<Long> hashes = new ArrayList<Long>();
+	private final List<String> hashBlobs = new ArrayList<String>();
+	private long exact = 0;
+	private long similar = 0;
+
+	/**
+	 * open store, known blobs are read from all index files
+	 *
+	 * @param root - store folder
+	 * @param distance - max dHash bit difference of similar capture, negative disables it
+	 * @param index - name of index file this store appends to
+	 */
+	public ScreenshotStore(File root, int distance, String index){
+		this.root = root;
+		this.distance = distance;
+		this.indexFile = new File(root, index);
+		File[] files = root.listFiles();
+		if(files != null)
+			for(File file : files)
+				if(file.isFile() && (file.getName().equals("index") || file.getName().startsWith("index.")))
+					loadIndex(file);
+	}
+
+	/**
+	 * perceptual check enabled or not
+	 *
+	 * @return true if similar captures are deduplicated
+	 */
+	public boolean isSimilarEnabled(){
+		return distance >= 0;
+	}
+
+	/**
+	 * find stored blob with same content
+	 *
+	 * @param sha - sha1 of captured bytes
+	 * @param ext - current image extension
+	 * @return blob path relative to screenshot folder, or null
+	 */
+	public String findExact(String sha, String ext){
+		String blob = blobs.get(sha);
+		if(blob == null && blobFile(sha, ext).isFile())
+			blob = relative(sha, ext);
+		if(blob != null)
+			exact++;
+		return blob;
+	}
+
+	/**
+	 * find stored blob whose dHash is closest and within distance
+	 *
+	 * @param hash - dHash of capture
+	 * @return [blob path, distance], or null
+	 */
+	public Object[] findSimilar(long hash){
+		if(!isSimilarEnabled())
+			return null;
+
+		int best = -1;
+		int bestDistance = Integer.MAX_VALUE;
+		for(int i = 0; i < hashes.size(); i++){
+			int bits = Long.bitCount(hashes.get(i) ^ hash);
+			if(bits < bestDistance){
+				best = i;
+				bestDistance = bits;
+			}
+		}
+
+		if(best < 0 || bestDistance > distance)
+			return null;
+
+		similar++;
+		return new Object[]{hashBlobs.get(best), bestDistance};
+	}
+
+	/**
+	 * final file of blob, written by rename only
+	 *
+	 * @param sha - sha1 of captured bytes
+	 * @param ext - image extension
+	 * @return blob file
+	 */
+	public File blobFile(String sha, String ext){
+		return new File(root, sha.substring(0, 2) + File.separator + sha + "." + ext);
+	}
+
+	/**
+	 * register blob just written
+	 *
+	 * @param sha - sha1 of captured bytes
+	 * @param ext - image extension
+	 * @param hash - dHash, or null if not computed
+	 * @return blob path relative to screenshot folder
+	 */
+	public String add(String sha, String ext, Long hash){
+		String blob = relative(sha, ext);
+		blobs.put(sha, blob);
+		if(hash != null){
+			hashes.add(hash);
+			hashBlobs.add(blob);
+		}
+
+		try{
+			Writer out = new OutputStreamWriter(new FileOutputStream(indexFile, true), "UTF-8");
+			try{
+				out.write(sha + " " + (hash == null ? "-" : Long.toHexString(hash)) + " " + blob + "\n");
+			}finally{
+				out.close();
+			}
+		}catch(IOException ex){
+			LOG.warn("failed to update screenshot index, caused by "+ex.getMessage());
+		}
+
+		return blob;
+	}
+
+	/**
+	 * write reference record of one capture
+	 *
+	 * @param ref - record file
+	 * @param blob - blob path relative to screenshot folder
+	 * @param sha - sha1 of captured bytes
+	 * @param match - new, exact or similar
+	 * @param bits - dHash distance of similar match
+	 * @throws IOException
+	 */
+	public void reference(File ref, String blob, String sha, String match, int bits) throws IOException{
+		if(ref.getParentFile() != null)
+			ref.getParentFile().mkdirs();
+
+		Writer out = new OutputStreamWriter(new FileOutputStream(ref), "UTF-8");
+		try{
+			out.write("blob = " + blob + "\n");
+			out.write("sha1 = " + sha + "\n");
+			out.write("match = " + match + "\n");
+			if("similar".equals(match))
+				out.write("distance = " + bits + "\n");
+			out.write("time = " + System.currentTimeMillis() + "\n");
+		}finally{
+			out.close();
+		}
+	}
+
+	/**
+	 * print dedup statistic
+	 */
+	@Override
+	public String toString(){
+		return blobs.size() + " blobs stored, " + exact + " exact and " + similar + " similar captures deduplicated";
+	}
+
+	/**
+	 * difference hash: shrink image to 9x8 gray cells, each bit tells whether a cell is brighter than its right one
+	 *
+	 * @param image - decoded capture
+	 * @return 64 bits hash
+	 */
+	public static long dHash(BufferedImage image){
+		int width = image.getWidth();
+		int height = image.getHeight();
+		long[] sums = new long[9 * 8];
+		long[] counts = new long[9 * 8];
+		int[] row = new int[width];
+		for(int y = 0; y < height; y++){
+			image.getRGB(0, y, width, 1, row, 0, width);
+			int cellY = y * 8 / height;
+			for(int x = 0; x < width; x++){
+				int rgb = row[x];
+				int gray = (((rgb >> 16) & 0xFF) * 299 + ((rgb >> 8) & 0xFF) * 587 + (rgb & 0xFF) * 114) / 1000;
+				int cell = cellY * 9 + x * 9 / width;
+				sums[cell] += gray;
+				counts[cell]++;
+			}
+		}
+
+		long hash = 0;
+		for(int y = 0; y < 8; y++)
+			for(int x = 0; x < 8; x++){
+				int left = y * 9 + x;
+				hash <<= 1;
+				if(sums[left] * Math.max(1, counts[left + 1]) > sums[left + 1] * Math.max(1, counts[left]))
+					hash |= 1;
+			}
+
+		return hash;
+	}
+
+	private String relative(String sha, String ext){
+		return root.getName() + "/" + sha.substring(0, 2) + "/" + sha + "." + ext;
+	}
+
+	/**
+	 * read index lines: sha1 dhash blob
+	 */
+	private void loadIndex(File file){
+		try{
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try{
+				String line;
+				while((line = in.readLine()) != null){
+					String[] parts = line.trim().split(" ");
+					if(parts.length != 3 || blobs.containsKey(parts[0]) || !new File(root.getParentFile(), parts[2]).isFile())
+						continue;
+
+					blobs.put(parts[0], parts[2]);
+					if(!"-".equals(parts[1])){
+						hashes.add(new BigInteger(parts[1], 16).longValue());
+						hashBlobs.add(parts[2]);
+					}
+				}
+			}finally{
+				in.close();
+			}
+		}catch(Exception ex){
+			LOG.warn("failed to read screenshot index "+file.getName()+", caused by "+ex.getMessage());
+		}
+	}
+}
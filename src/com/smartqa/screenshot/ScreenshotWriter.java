@@ -0,0 +1,343 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.screenshot;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.smartqa.utils.CommonUtils;
+
+/**
+ * <p>
+ * Background screenshot writer.<br/>
+ * Scenario thread only captures PNG bytes and puts them into a bounded queue,
+ * one daemon thread encodes them into target format and writes them to disk.
+ * When queue is full, capturing thread waits until writer catches up, so memory stays bounded.
+ * </p>
+ *
+ * <p>
+ * Configured by system properties:
+ * <ul>
+ * 	<li>smartqa.screenshot.format - png (default, written as captured) or jpg</li>
+ * 	<li>smartqa.screenshot.quality - jpg quality between 0 and 1, default 0.8</li>
+ * 	<li>smartqa.screenshot.queue - max screenshots waiting, default 16</li>
+ * 	<li>smartqa.screenshot.store - keep images in {@link ScreenshotStore}, default true, false writes each capture as it is</li>
+ * 	<li>smartqa.screenshot.similar - max dHash distance to treat capture as duplicate, default -1 (disabled)</li>
+ * </ul>
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class ScreenshotWriter {
+	private final static Logger LOG = LogManager.getLogger("ScreenshotWriter");
+	private static ScreenshotWriter instance = null;
+
+	private final String format;
+	private final float quality;
+	private final BlockingQueue<Shot> queue;
+	private final ScreenshotStore store;
+	private Thread worker;
+	private int pending = 0;
+	private long written = 0;
+	private long blocked = 0;
+
+	/**
+	 * private constructor, use {@link #getInstance()}
+	 */
+	private ScreenshotWriter(){
+		String type = System.getProperty("smartqa.screenshot.format", "png").toLowerCase();
+		if("jpeg".equals(type))
+			type = "jpg";
+		if(!"png".equals(type) && !ImageIO.getImageWritersByFormatName(type).hasNext()){
+			LOG.warn("No image writer for "+type+", screenshots are written as captured png");
+			type = "png";
+		}
+
+		this.format = type;
+		this.quality = Math.max(0f, Math.min(1f, Float.parseFloat(System.getProperty("smartqa.screenshot.quality", "0.8"))));
+		this.queue = new ArrayBlockingQueue<Shot>(Math.max(1, Integer.getInteger("smartqa.screenshot.queue", 16)));
+		this.store = "false".equalsIgnoreCase(System.getProperty("smartqa.screenshot.store")) ? null 
+				: new ScreenshotStore(new File("screenshot", "store"), Integer.getInteger("smartqa.screenshot.similar", -1),
+						//forked worker JVMs share the store, each appends to its own index
+						System.getProperty("smartqa.worker.slot") == null ? "index" : "index." + System.getProperty("smartqa.worker.slot"));
+	}
+
+	/**
+	 * get singleton instance
+	 *
+	 * @return ScreenshotWriter
+	 */
+	public static synchronized ScreenshotWriter getInstance(){
+		if(instance == null)
+			instance = new ScreenshotWriter();
+		return instance;
+	}
+
+	/**
+	 * file extension of written screenshots, like "png"
+	 *
+	 * @return extension
+	 */
+	public String getExtension(){
+		return format;
+	}
+
+	/**
+	 * queue captured PNG to be written, waits when queue is full
+	 *
+	 * @param png - captured screenshot
+	 * @param name - target file path without extension
+	 * @return path of image, or of reference record when store is used
+	 */
+	public String write(byte[] png, String name){
+		String path = name + "." + (store == null ? format : "ref");
+		synchronized(this){
+			if(worker == null){
+				worker = new Thread(new Runnable(){
+					@Override
+					public void run(){
+						loop();
+					}
+				}, "screenshot-writer");
+				worker.setDaemon(true);
+				worker.start();
+			}
+			pending++;
+		}
+
+		Shot shot = new Shot(png, new File(path));
+		try{
+			if(!queue.offer(shot)){
+				long start = System.currentTimeMillis();
+				queue.put(shot);
+				synchronized(this){
+					blocked += System.currentTimeMillis() - start;
+				}
+			}
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+			done();
+			LOG.warn("Interrupted, screenshot "+path+" dropped");
+		}
+		return path;
+	}
+
+	/**
+	 * wait all queued screenshots written
+	 *
+	 * @param timeout - max wait time, unit: ms
+	 * @return true if all written
+	 */
+	public synchronized boolean flush(long timeout){
+		long end = System.currentTimeMillis() + timeout;
+		try{
+			while(pending > 0){
+				long left = end - System.currentTimeMillis();
+				if(left <= 0)
+					return false;
+				wait(left);
+			}
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * write all queued screenshots, then stop writer thread
+	 */
+	public void close(){
+		if(!flush(60 * 1000))
+			LOG.warn(pending+" screenshots not written in time");
+
+		synchronized(this){
+			if(worker == null)
+				return;
+			worker.interrupt();
+			worker = null;
+			LOG.info(written+" screenshots written, capture waited "+blocked+"ms on full queue");
+			if(store != null)
+				LOG.info("Screenshot store: "+store);
+		}
+	}
+
+	/**
+	 * writer thread, take and write screenshots until interrupted
+	 */
+	private void loop(){
+		while(!Thread.currentThread().isInterrupted()){
+			Shot shot;
+			try{
+				shot = queue.poll(1, TimeUnit.SECONDS);
+			}catch(InterruptedException ex){
+				break;
+			}
+			if(shot == null)
+				continue;
+
+			try{
+				save(shot);
+				synchronized(this){
+					written++;
+				}
+			}catch(Exception ex){
+				LOG.warn("failed to write screenshot "+shot.file+", caused by "+ex.getMessage());
+			}finally{
+				done();
+			}
+		}
+	}
+
+	private synchronized void done(){
+		pending--;
+		notifyAll();
+	}
+
+	/**
+	 * write one screenshot, into store when enabled
+	 */
+	private void save(Shot shot) throws IOException{
+		if(store == null){
+			encode(shot, shot.file);
+			return;
+		}
+
+		String sha = CommonUtils.hash(shot.png);
+		String blob = store.findExact(sha, format);
+		if(blob != null){
+			store.reference(shot.file, blob, sha, "exact", 0);
+			return;
+		}
+
+		Long hash = null;
+		if(store.isSimilarEnabled()){
+			hash = ScreenshotStore.dHash(decode(shot));
+			Object[] match = store.findSimilar(hash);
+			if(match != null){
+				store.reference(shot.file, (String)match[0], sha, "similar", (Integer)match[1]);
+				return;
+			}
+		}
+
+		//blob path is taken as proof of complete image, so it only appears by rename
+		File target = store.blobFile(sha, format);
+		target.getParentFile().mkdirs();
+		File temp = File.createTempFile(sha + ".", ".tmp", target.getParentFile());
+		try{
+			encode(shot, temp);
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}finally{
+			temp.delete();
+		}
+		store.reference(shot.file, store.add(sha, format, hash), sha, "new", 0);
+	}
+
+	/**
+	 * encode one screenshot into target format and write it
+	 */
+	private void encode(Shot shot, File file) throws IOException{
+		if(file.getParentFile() != null)
+			file.getParentFile().mkdirs();
+
+		if("png".equals(format)){
+			OutputStream out = new FileOutputStream(file);
+			try{
+				out.write(shot.png);
+			}finally{
+				out.close();
+			}
+			return;
+		}
+
+		BufferedImage image = decode(shot);
+
+		//jpg has no alpha channel
+		BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = rgb.createGraphics();
+		try{
+			graphics.drawImage(image, 0, 0, Color.WHITE, null);
+		}finally{
+			graphics.dispose();
+		}
+
+		//image stream doesn't truncate existing file
+		file.delete();
+		ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+		ImageOutputStream out = ImageIO.createImageOutputStream(file);
+		try{
+			writer.setOutput(out);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if(param.canWriteCompressed()){
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(quality);
+			}
+			writer.write(null, new IIOImage(rgb, null, null), param);
+		}finally{
+			writer.dispose();
+			out.close();
+		}
+	}
+
+	/**
+	 * decode captured PNG once
+	 */
+	private BufferedImage decode(Shot shot) throws IOException{
+		if(shot.image == null)
+			shot.image = ImageIO.read(new ByteArrayInputStream(shot.png));
+		if(shot.image == null)
+			throw new IOException("not a png image");
+		return shot.image;
+	}
+
+	/**
+	 * one queued screenshot
+	 */
+	private static class Shot{
+		final byte[] png;
+		final File file;
+		BufferedImage image;
+
+		Shot(byte[] png, File file){
+			this.png = png;
+			this.file = file;
+		}
+	}
+}
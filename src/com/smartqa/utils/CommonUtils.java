@@ -19,6 +19,7 @@ package com.smartqa.utils;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.security.MessageDigest;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -234,6 +235,57 @@ public abstract class CommonUtils {
 		return null;
 	}
 	
+	/**
+	 * hash data by SHA-1
+	 * 
+	 * @param data
+	 * @return hex string of hash
+	 */
+	public static String hash(byte[] data){
+		try{
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+			StringBuilder buf = new StringBuilder(digest.length * 2);
+			for(byte b : digest){
+				buf.append(Character.forDigit((b >> 4) & 0xF, 16));
+				buf.append(Character.forDigit(b & 0xF, 16));
+			}
+			
+			return buf.toString();
+		}catch(Exception ex){
+			throw new IllegalStateException("SHA-1 not supported", ex);
+		}
+	}
+	
+	/**
+	 * quote string as JSON string literal, null becomes null
+	 * 
+	 * @param src
+	 * @return quoted string
+	 */
+	public static String quote(String src){
+		if(src == null)
+			return "null";
+		
+		StringBuilder buf = new StringBuilder(src.length() + 2).append('"');
+		for(int i = 0; i < src.length(); i++){
+			char c = src.charAt(i);
+			if(c == '"' || c == '\\')
+				buf.append('\\').append(c);
+			else if(c == '\n')
+				buf.append("\\n");
+			else if(c == '\r')
+				buf.append("\\r");
+			else if(c == '\t')
+				buf.append("\\t");
+			else if(c < 0x20)
+				buf.append(String.format("\\u%04x", (int)c));
+			else
+				buf.append(c);
+		}
+		
+		return buf.append('"').toString();
+	}
+	
 	/**
 	 * call current thread sleep with time parameter
 	 * 
@@ -16,25 +16,29 @@
  */
 package com.smartqa.utils;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.openqa.selenium.By;
+import org.openqa.selenium.JavascriptExecutor;
 import org.openqa.selenium.NoAlertPresentException;
 import org.openqa.selenium.OutputType;
 import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.UnsupportedCommandException;
 import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.WebElement;
-import org.openqa.selenium.remote.RemoteWebDriver;
 import org.openqa.selenium.support.ui.ExpectedCondition;
 
+import com.smartqa.metrics.PageTiming;
+import com.smartqa.screenshot.ScreenshotWriter;
+
 /**
  * WebDriver utility class.
  * 
@@ -45,56 +49,134 @@ import org.openqa.selenium.support.ui.ExpectedCondition;
 public abstract class WebDriverUtils {
 	private final static Logger LOG = LogManager.getLogger("WebDriverUtils");
 	
-	private final static String DNS_START = "domainLookupStart";
-	private final static String DNS_END = "domainLookupEnd";
-	private final static String TCP_START = "connectStart";
-	private final static String TCP_END = "connectEnd";
-	private final static String SERVER_START = "requestStart";
-	private final static String SERVER_END = "responseEnd";
-	private final static String PAGE_START = "domLoading";
-	private final static String PAGE_END = "loadEventEnd";
-	
 	//DNS parse address time
-	public final static String DNS_TIME = "dns.time";
+	public final static String DNS_TIME = PageTiming.DNS_TIME;
 	
 	//TCP connection time
-	public final static String TCP_TIME = "tcp.time";
+	public final static String TCP_TIME = PageTiming.TCP_TIME;
 	
 	//server handle request and resolve response time
-	public final static String SERVER_TIME = "server.time";
+	public final static String SERVER_TIME = PageTiming.SERVER_TIME;
 	
 	//page load element time
-	public final static String PAGE_TIME = "page.time";
+	public final static String PAGE_TIME = PageTiming.PAGE_TIME;
+	
+	//clear local and session storage of current page
+	protected static String CLEAR_STORAGE_SCRIPT = "try{window.localStorage.clear();}catch(e){} " +
+			"try{window.sessionStorage.clear();}catch(e){}";
+	
+	//hook XHR/fetch and DOM mutation of current page once, to track start time of pending requests and last change.
+	//only added or removed nodes count as change, attribute and text churn of carousels and clocks doesn't
+	protected static String WATCH_SCRIPT = "var w = window; if(!w.__smartqa){ " +
+			"var s = w.__smartqa = {pending: {}, id: 0, last: Date.now()}; " +
+			"var start = function(){ var id = ++s.id; s.pending[id] = s.last = Date.now(); " +
+			"return function(){ if(s.pending[id]){ delete s.pending[id]; s.last = Date.now(); } }; }; " +
+			"if(w.XMLHttpRequest){ var send = XMLHttpRequest.prototype.send; " +
+			"XMLHttpRequest.prototype.send = function(){ var done = start(); this.addEventListener('loadend', done); " +
+			"try{ return send.apply(this, arguments); }catch(e){ done(); throw e; } }; } " +
+			"if(w.fetch){ var fetch = w.fetch; w.fetch = function(){ var done = start(), p; " +
+			"try{ p = fetch.apply(this, arguments); }catch(e){ done(); throw e; } " +
+			"return p.then(function(r){ done(); return r; }, function(e){ done(); throw e; }); }; } " +
+			"if(w.MutationObserver){ new MutationObserver(function(){ s.last = Date.now(); }).observe(document, " +
+			"{childList: true, subtree: true}); } } ";
+	
+	//hook page if not yet, report [readyState, pending, quiet ms], 
+	//requests pending longer than arguments[0] ms are long poll or streaming, not counted
+	protected static String QUIET_SCRIPT = WATCH_SCRIPT + 
+			"var now = Date.now(), busy = 0; for(var id in w.__smartqa.pending) " +
+			"if(now - w.__smartqa.pending[id] < arguments[0]) busy++; " +
+			"return [document.readyState, busy, now - w.__smartqa.last];";
 	
-	//W3C web performance API, 
-	protected static String w3cPerfScript = "var performance = window.performance || window.webkitPerformance || " +  
-			"window.mozPerformance || window.msPerformance || {}; " +  
-			"var timings = performance.timing || {}; return timings;";  
+	//poll interval when wait page quiet, unit: ms
+	private final static long QUIET_POLL = 50;
+	
+	//request pending longer is taken as long poll or stream, page may be quiet with it, unit: ms
+	private final static long LONG_REQUEST = 3000;
+	
+	//scheme, host and port of http(s) url
+	private final static Pattern ORIGIN = Pattern.compile("^(https?://[^/?#]+)", Pattern.CASE_INSENSITIVE);
 	
 	/**
-	 * analysis page performance by w3c web performance API<br/>
-	 * inject javascript to get the performance time
+	 * hook XHR/fetch and DOM mutation of current page, so requests fired by next action are tracked.<br/>
+	 * Page load removes hooks, call it after each page load, failure is ignored
 	 * 
 	 * @param driver - web driver instance
-	 * @return map stored performance data
 	 */
-	public static Map<String, Long> analysis(WebDriver driver){
-		Map<String, Long> dataMap = buildMap();
+	public static void watchPage(WebDriver driver){
+		if(!(driver instanceof JavascriptExecutor))
+			return;
 		
 		try{
-			StringBuilder timeData = new StringBuilder().append(((RemoteWebDriver)driver).executeScript(w3cPerfScript).toString());  
-			timeData.deleteCharAt(0);  
-		    timeData.deleteCharAt(timeData.length()-1);  
-		    Map<String, String> timeMap = CommonUtils.buildMap(timeData.toString().split(","));
-		    
-		    dataMap.put(DNS_TIME, getTime(DNS_START, DNS_END, timeMap));
-		    dataMap.put(TCP_TIME, getTime(TCP_START, TCP_END, timeMap));
-		    dataMap.put(SERVER_TIME, getTime(SERVER_START, SERVER_END, timeMap));
-		    dataMap.put(PAGE_TIME, getTime(PAGE_START, PAGE_END, timeMap));
+			((JavascriptExecutor)driver).executeScript(WATCH_SCRIPT);
 		}catch(Exception ex){
-			LOG.warn("failed to resolve performance data, caused by "+ex.getMessage());
+			//alert open or page not scriptable, next wait falls back to sleep if it can't read page
 		}
+	}
+	
+	/**
+	 * wait until page is quiet: document loaded, no pending XHR/fetch 
+	 * and no node added or removed during the quiet window, or timeout reached.<br/>
+	 * Requests fired before page is hooked are not seen, see {@link #watchPage(WebDriver)}, 
+	 * requests pending over 3s are taken as long poll and ignored
+	 * 
+	 * @param driver - web driver instance
+	 * @param timeout - max wait time, unit: ms
+	 * @param quiet - quiet window, unit: ms
+	 * @return waited time in ms, or -1 if page state can't be read by script
+	 */
+	public static long waitForQuiet(WebDriver driver, long timeout, long quiet){
+		if(!(driver instanceof JavascriptExecutor))
+			return -1;
 		
+		long start = System.currentTimeMillis();
+		int failures = 0;
+		while(true){
+			try{
+				Object state = ((JavascriptExecutor)driver).executeScript(QUIET_SCRIPT, LONG_REQUEST);
+				if(!(state instanceof List))
+					return -1;
+				failures = 0;
+				if(isQuiet((List<?>)state, quiet))
+					break;
+			}catch(UnsupportedCommandException ex){
+				return -1;
+			}catch(Exception ex){
+				//alert blocks script, nothing more will happen until it is handled
+				if(isAlertExist(driver))
+					break;
+				if(++failures >= 3){
+					LOG.warn("failed to read page state, caused by "+ex.getMessage());
+					return -1;
+				}
+			}
+			
+			if(System.currentTimeMillis() - start >= timeout){
+				LOG.warn("Page still busy after "+timeout+"ms, go ahead");
+				break;
+			}
+			CommonUtils.waiting(QUIET_POLL);
+		}
+		
+		return System.currentTimeMillis() - start;
+	}
+	
+	/**
+	 * analysis page performance by w3c web performance API<br/>
+	 * read navigation timing by one script call, see {@link PageTiming} for all metric names
+	 * 
+	 * @param driver - web driver instance
+	 * @return map stored performance data, -1 if not available
+	 */
+	public static Map<String, Long> analysis(WebDriver driver){
+		PageTiming timing = PageTiming.collect(driver);
+		if(timing != null)
+			return timing.toMap();
+		
+		Map<String, Long> dataMap = new HashMap<String, Long>();
+		dataMap.put(DNS_TIME, -1L);
+		dataMap.put(TCP_TIME, -1L);
+		dataMap.put(SERVER_TIME, -1L);
+		dataMap.put(PAGE_TIME, -1L);
 		return dataMap;
 	}
 	
@@ -140,6 +222,74 @@ public abstract class WebDriverUtils {
 		}
 	}
 	
+	/**
+	 * check web driver still responds, a crashed browser throws on any call
+	 * 
+	 * @param driver
+	 * @return true if driver is usable
+	 */
+	public static boolean isAlive(WebDriver driver){
+		try{
+			driver.getWindowHandle();
+			return true;
+		}catch(Exception ex){
+			return false;
+		}
+	}
+	
+	/**
+	 * reset web driver state so it can serve next scenario:<br/>
+	 * dismiss alert, close extra windows, back to default content, clear storage and cookies, then load blank page.<br/>
+	 * Browser only clears state of the page it is on, so page of the origin is opened first when it stopped elsewhere.
+	 * 
+	 * @param driver
+	 * @param origin - the only origin scenario visited, like "https://example.com", null if none
+	 * @return true if reset finished, false means driver should be dropped
+	 */
+	public static boolean resetWebDriver(WebDriver driver, String origin){
+		try{
+			//alert open blocks any other call
+			if(isAlertExist(driver))
+				driver.switchTo().alert().dismiss();
+			
+			String current = driver.getWindowHandle();
+			for(String winId : driver.getWindowHandles())
+				if(!winId.equals(current))
+					driver.switchTo().window(winId).close();
+			driver.switchTo().window(current);
+			driver.switchTo().defaultContent();
+			
+			if(origin != null && !origin.equals(origin(driver.getCurrentUrl())))
+				driver.navigate().to(origin + "/");
+			
+			try{
+				((JavascriptExecutor)driver).executeScript(CLEAR_STORAGE_SCRIPT);
+			}catch(Exception ex){
+				//page like about:blank has no storage
+			}
+			driver.manage().deleteAllCookies();
+			driver.navigate().to("about:blank");
+			return true;
+		}catch(Exception ex){
+			LOG.warn("failed to reset web driver, caused by "+ex.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * origin of http(s) url: scheme, host and port, in lower case
+	 * 
+	 * @param url
+	 * @return origin like "https://example.com:8443", null for other urls like about:blank
+	 */
+	public static String origin(String url){
+		if(url == null)
+			return null;
+		
+		Matcher matcher = ORIGIN.matcher(url);
+		return matcher.find() ? matcher.group(1).toLowerCase() : null;
+	}
+	
 	/**
 	 * check alert window show up or not
 	 * 
@@ -156,58 +306,37 @@ public abstract class WebDriverUtils {
 	}
 	
 	/**
-	 * take screenshot of web page
+	 * take screenshot of web page<br/>
+	 * only capture happens on caller thread, image is written to disk in background, see {@link ScreenshotWriter}
 	 * 
 	 * @param driver
 	 * @param savePath
-	 * @return screenshot image path
+	 * @return screenshot image path, or its reference record in screenshot store, file may not be written yet
 	 */
 	public static String takeScreenshot(WebDriver driver, String savePath){
 		 try {
-			File screenShotFile = ((TakesScreenshot)driver).getScreenshotAs(OutputType.FILE);
-			String path = "screenshot/"+savePath;
-			if(!savePath.endsWith("/.png"))
-				path = path + ".png";
-			
-			FileUtils.copyFile(screenShotFile, new File(path));
+			byte[] png = ((TakesScreenshot)driver).getScreenshotAs(OutputType.BYTES);
+			ScreenshotWriter writer = ScreenshotWriter.getInstance();
+			String path = writer.write(png, "screenshot/"+savePath.replaceAll("\\.(png|jpe?g)$", ""));
 			LOG.info("Take screenshot at "+savePath);
 			return path;
-		} catch (IOException ex) {
+		} catch (Exception ex) {
 			LOG.warn("failed to take screenshot for current page, caused by "+ex.getMessage());
 			return null;
 		}
 	}
 	
 	/**
-	 * help to calculate performance time
+	 * check page state returned by quiet script
 	 * 
-	 * @param startKey
-	 * @param endKey
-	 * @param timeMap
-	 * @return performance time
+	 * @param values - [readyState, pending, quiet ms]
+	 * @param quiet - quiet window, unit: ms
+	 * @return true if page is quiet
 	 */
-	private static Long getTime(String startKey, String endKey, Map<String, String> timeMap){
-		try{
-			long startTime = NumberUtils.toLong(timeMap.get(startKey));
-			long endTime = NumberUtils.toLong(timeMap.get(endKey));
-			return (endTime-startTime);
-		}catch(Exception ex){
-			return -1L;
-		}
+	private static boolean isQuiet(List<?> values, long quiet){
+		return values.size() == 3 && "complete".equals(values.get(0))
+				&& NumberUtils.toLong(String.valueOf(values.get(1))) <= 0
+				&& NumberUtils.toLong(String.valueOf(values.get(2))) >= quiet;
 	}
 	
-	/**
-	 * build performance map
-	 * 
-	 * @return empty map
-	 */
-	private static Map<String, Long> buildMap(){
-		Map<String, Long> emptyMap = new HashMap<String, Long>();
-		emptyMap.put(DNS_TIME, -1L);
-		emptyMap.put(TCP_TIME, -1L);
-		emptyMap.put(SERVER_TIME, -1L);
-		emptyMap.put(PAGE_TIME, -1L);
-		
-		return emptyMap;
-	}
 }
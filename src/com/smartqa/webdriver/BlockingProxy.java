@@ -0,0 +1,720 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.webdriver;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.smartqa.exception.SmartQAException;
+
+/**
+ * <p>
+ * Embedded HTTP proxy on loopback, drops requests of resources scenarios don't need, like ads, analytics and video.<br/>
+ * Enabled by Proxy_Block rules in config/smartqa.ini, {@link Browser} points every Chrome and Firefox driver at it.
+ * Rules are separated by space or comma:
+ * <ul>
+ * 	<li>host:doubleclick.net - the host and its sub domains</li>
+ * 	<li>type:media - resource type by extension or Accept header: image, media, font, script, css</li>
+ * 	<li>*.mp4, *://*&#47;ads/* - glob on whole url, * and ? wildcards</li>
+ * </ul>
+ * HTTPS goes through CONNECT tunnel, so only host rules can block it.
+ * </p>
+ *
+ * <p>
+ * Browser connections are kept alive like a direct one, and upstream connection is reused while
+ * requests of the connection go to the same host, so passed traffic pays no extra handshakes.
+ * Blocked request gets an empty answer at once. Size and fetch time of what was not downloaded are estimated
+ * by average of same type of resources passed through, see {@link #getStats()}.
+ * Proxy is shared by all drivers of the JVM, statistic between two points is exact when one scenario runs at a time.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class BlockingProxy {
+	private final static Logger LOG = LogManager.getLogger("BlockingProxy");
+	private final static String[] TYPES = {"image", "media", "font", "script", "css", "other"};
+	//guessed size and time of blocked resource before any of its type passed through
+	private final static long[] DEFAULT_BYTES = {20000, 500000, 30000, 40000, 15000, 10000};
+	private final static long[] DEFAULT_TIME = {80, 800, 100, 120, 80, 100};
+	private final static Map<String, Integer> EXTENSIONS = new HashMap<String, Integer>();
+	private final static int TIMEOUT = 60 * 1000;
+	private final static int BUFFER = 16 * 1024;
+
+	static{
+		for(String ext : "png,jpg,jpeg,gif,webp,svg,ico,bmp,avif".split(","))
+			EXTENSIONS.put(ext, 0);
+		for(String ext : "mp4,webm,mp3,m4a,ogg,flv,m3u8,ts,wav".split(","))
+			EXTENSIONS.put(ext, 1);
+		for(String ext : "woff,woff2,ttf,otf,eot".split(","))
+			EXTENSIONS.put(ext, 2);
+		EXTENSIONS.put("js", 3);
+		EXTENSIONS.put("css", 4);
+	}
+
+	private final List<String> hosts = new ArrayList<String>();
+	private final List<Integer> types = new ArrayList<Integer>();
+	private final List<Pattern> globs = new ArrayList<Pattern>();
+	private final ExecutorService executor;
+	private ServerSocket server;
+
+	//passed through: count, bytes, time of each type
+	private final long[][] passed = new long[TYPES.length][3];
+	private long requests = 0;
+	private long blocked = 0;
+	private long savedBytes = 0;
+	private long savedTime = 0;
+
+	/**
+	 * create proxy by rules
+	 *
+	 * @param rules - space or comma separated rules, see class doc
+	 * @throws SmartQAException if a type is unknown
+	 */
+	public BlockingProxy(String rules){
+		for(String rule : StringUtils.trimToEmpty(rules).split("[\\s,]+")){
+			if(rule.length() == 0)
+				continue;
+
+			if(rule.startsWith("host:"))
+				hosts.add(rule.substring(5).toLowerCase(Locale.ROOT));
+			else if(rule.startsWith("type:")){
+				int type = indexOf(rule.substring(5).toLowerCase(Locale.ROOT));
+				if(type < 0)
+					throw new SmartQAException("unknown resource type in proxy rule "+rule);
+				types.add(type);
+			}else
+				globs.add(glob(rule));
+		}
+
+		executor = Executors.newCachedThreadPool(new ThreadFactory(){
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task){
+				Thread thread = new Thread(task, "blocking-proxy-"+count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * listen on loopback and serve in background
+	 *
+	 * @param port - listen port, 0 for any free one
+	 * @return listen port
+	 * @throws IOException if port can't be opened
+	 */
+	public synchronized int start(int port) throws IOException{
+		if(server != null)
+			return server.getLocalPort();
+
+		server = new ServerSocket(port, 50, InetAddress.getByName(null));
+		final ServerSocket listening = server;
+		executor.execute(new Runnable(){
+			@Override
+			public void run(){
+				while(!listening.isClosed()){
+					try{
+						final Socket client = listening.accept();
+						executor.execute(new Runnable(){
+							@Override
+							public void run(){
+								handle(client);
+							}
+						});
+					}catch(IOException ex){
+						if(!listening.isClosed())
+							LOG.warn("Proxy accept failed, caused by "+ex.getMessage());
+					}
+				}
+			}
+		});
+
+		LOG.info("Blocking proxy listens on "+server.getLocalPort()+", "+hosts.size()+" host, "+types.size()
+				+" type and "+globs.size()+" url rules");
+		return server.getLocalPort();
+	}
+
+	/**
+	 * address for browser proxy settings, like "127.0.0.1:8118"
+	 *
+	 * @return host and port
+	 */
+	public synchronized String getAddress(){
+		return server == null ? null : server.getInetAddress().getHostAddress() + ":" + server.getLocalPort();
+	}
+
+	/**
+	 * stop listening and drop open connections
+	 */
+	public synchronized void stop(){
+		if(server == null)
+			return;
+
+		try{
+			server.close();
+		}catch(IOException ex){
+			//ignore
+		}
+		server = null;
+		executor.shutdownNow();
+		LOG.info("Blocking proxy: "+getStats());
+	}
+
+	/**
+	 * counters since proxy started, subtract two of them to get statistic of one page
+	 *
+	 * @return statistic
+	 */
+	public synchronized Stats getStats(){
+		return new Stats(requests, blocked, savedBytes, savedTime);
+	}
+
+	/**
+	 * check request against rules
+	 *
+	 * @param host - target host
+	 * @param url - whole url
+	 * @param accept - Accept header, may be null
+	 * @return true if it should be blocked
+	 */
+	public boolean isBlocked(String host, String url, String accept){
+		host = host.toLowerCase(Locale.ROOT);
+		for(String rule : hosts)
+			if(host.equals(rule) || host.endsWith("." + rule))
+				return true;
+
+		if(!types.isEmpty() && types.contains(classify(url, accept)))
+			return true;
+
+		for(Pattern rule : globs)
+			if(rule.matcher(url).matches())
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * serve one browser connection, kept alive for the next requests while browser and answer allow it,
+	 * upstream connection is reused while requests go to the same host
+	 */
+	private void handle(Socket client){
+		Socket remote = null;
+		String remoteKey = null;
+		InputStream remoteIn = null;
+		try{
+			client.setSoTimeout(TIMEOUT);
+			InputStream in = new BufferedInputStream(client.getInputStream());
+			OutputStream out = client.getOutputStream();
+
+			while(true){
+				List<String> head = readHead(in);
+				if(head.isEmpty())
+					return;
+				String[] line = head.get(0).split(" ");
+				if(line.length != 3){
+					answer(out, "400 Bad Request", true);
+					return;
+				}
+
+				String method = line[0];
+				String accept = header(head, "Accept");
+				if("CONNECT".equalsIgnoreCase(method)){
+					String host = StringUtils.substringBeforeLast(line[1], ":");
+					int port = NumberUtils.toInt(StringUtils.substringAfterLast(line[1], ":"), 443);
+					if(count(host, "https://" + host + "/", accept, true)){
+						answer(out, "403 Forbidden", true);
+						return;
+					}
+
+					close(remote);
+					remote = connect(host, port);
+					out.write("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes("ISO-8859-1"));
+					out.flush();
+					tunnel(client, in, remote, remote.getInputStream());
+					return;
+				}
+
+				String url = line[1];
+				if(!url.startsWith("http://")){
+					answer(out, "400 Bad Request", true);
+					return;
+				}
+				String authority = StringUtils.substringBefore(url.substring(7), "/");
+				String path = url.substring(7 + authority.length());
+				String host = authority.contains(":") ? StringUtils.substringBefore(authority, ":") : authority;
+				int port = authority.contains(":") ? NumberUtils.toInt(StringUtils.substringAfter(authority, ":"), 80) : 80;
+				boolean upgrade = header(head, "Upgrade") != null;
+				boolean close = !upgrade && !keepAlive(line[2], head);
+
+				int type = classify(url, accept);
+				if(count(host, url, accept, false)){
+					//body of dropped request is read off, so next request on the connection starts clean
+					body(in, null, head, false);
+					answer(out, "204 No Content", close);
+					if(close)
+						return;
+					continue;
+				}
+
+				long start = System.currentTimeMillis();
+				StringBuilder request = new StringBuilder(method).append(' ').append(path.length() == 0 ? "/" : path).append(" HTTP/1.1\r\n");
+				for(int i = 1; i < head.size(); i++)
+					if(upgrade || !isHop(head.get(i)))
+						request.append(head.get(i)).append("\r\n");
+				if(close)
+					request.append("Connection: close\r\n");
+				byte[] requestHead = request.append("\r\n").toString().getBytes("ISO-8859-1");
+
+				String key = host + ":" + port;
+				List<String> response = null;
+				for(int attempt = 0; response == null; attempt++){
+					boolean reused = remote != null && key.equals(remoteKey);
+					if(!reused){
+						close(remote);
+						remote = connect(host, port);
+						remoteKey = key;
+						remoteIn = new BufferedInputStream(remote.getInputStream());
+					}
+
+					try{
+						OutputStream upstream = remote.getOutputStream();
+						upstream.write(requestHead);
+						body(in, upstream, head, false);
+						upstream.flush();
+						response = readHead(remoteIn);
+						if(response.isEmpty())
+							throw new EOFException("upstream closed without answer");
+					}catch(IOException ex){
+						close(remote);
+						remote = null;
+						remoteKey = null;
+						response = null;
+						//idle upstream connection closed by server meanwhile, request without body can go again on a new one
+						if(!reused || attempt > 0 || hasBody(head))
+							throw ex;
+					}
+				}
+
+				long bytes = 0;
+				int status = status(response);
+				while(status >= 100 && status < 200 && status != 101){
+					bytes += writeHead(out, response, null);
+					response = readHead(remoteIn);
+					if(response.isEmpty())
+						throw new EOFException("upstream closed without answer");
+					status = status(response);
+				}
+
+				if(status == 101){
+					for(String field : response)
+						out.write((field + "\r\n").getBytes("ISO-8859-1"));
+					out.write("\r\n".getBytes("ISO-8859-1"));
+					out.flush();
+					tunnel(client, in, remote, remoteIn);
+					return;
+				}
+
+				//answer length must be known to keep browser connection, otherwise it ends by close
+				boolean empty = "HEAD".equalsIgnoreCase(method) || status == 204 || status == 304;
+				boolean framed = empty || isChunked(response) || header(response, "Content-Length") != null;
+				boolean keepRemote = framed && keepAlive(StringUtils.substringBefore(response.get(0), " "), response);
+				boolean keepClient = framed && !close;
+
+				bytes += writeHead(out, response, keepClient ? "keep-alive" : "close");
+				if(!empty)
+					bytes += body(remoteIn, out, response, true);
+				out.flush();
+				synchronized(this){
+					passed[type][0]++;
+					passed[type][1] += bytes;
+					passed[type][2] += System.currentTimeMillis() - start;
+				}
+
+				if(!keepRemote){
+					close(remote);
+					remote = null;
+					remoteKey = null;
+				}
+				if(!keepClient)
+					return;
+			}
+		}catch(IOException ex){
+			if(!(ex instanceof SocketException))
+				LOG.debug("Proxy request failed, caused by "+ex.getMessage());
+		}finally{
+			close(remote);
+			close(client);
+		}
+	}
+
+	/**
+	 * count request, and its estimated saving when blocked
+	 */
+	private boolean count(String host, String url, String accept, boolean tunnel){
+		boolean block = isBlocked(host, url, accept);
+		synchronized(this){
+			requests++;
+			if(!block)
+				return false;
+
+			blocked++;
+			//type of tunnel is unknown
+			int type = tunnel ? TYPES.length - 1 : classify(url, accept);
+			long[] stat = passed[type];
+			savedBytes += stat[0] == 0 ? DEFAULT_BYTES[type] : stat[1] / stat[0];
+			savedTime += stat[0] == 0 ? DEFAULT_TIME[type] : stat[2] / stat[0];
+		}
+		if(LOG.isDebugEnabled())
+			LOG.debug("Blocked "+url);
+		return true;
+	}
+
+	/**
+	 * pump bytes both ways until one side closes
+	 */
+	private void tunnel(final Socket client, final InputStream clientIn, final Socket remote, InputStream remoteIn) throws IOException{
+		executor.execute(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					copy(clientIn, remote.getOutputStream(), Long.MAX_VALUE);
+				}catch(IOException ex){
+					//closed by other side
+				}finally{
+					close(remote);
+				}
+			}
+		});
+		client.setSoTimeout(0);
+		remote.setSoTimeout(0);
+		copy(remoteIn, client.getOutputStream(), Long.MAX_VALUE);
+	}
+
+	/**
+	 * open upstream connection, bounded by timeout instead of system default
+	 */
+	private static Socket connect(String host, int port) throws IOException{
+		Socket socket = new Socket();
+		try{
+			socket.connect(new InetSocketAddress(host, port), TIMEOUT);
+			socket.setSoTimeout(TIMEOUT);
+		}catch(IOException ex){
+			close(socket);
+			throw ex;
+		}
+		return socket;
+	}
+
+	/**
+	 * resource type index by url extension, then by Accept header
+	 */
+	private static int classify(String url, String accept){
+		String path = StringUtils.substringBefore(StringUtils.substringBefore(url, "?"), "#");
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		if(name.indexOf('.') >= 0){
+			Integer type = EXTENSIONS.get(name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT));
+			if(type != null)
+				return type;
+		}
+
+		if(accept != null){
+			if(accept.startsWith("image/"))
+				return 0;
+			if(accept.startsWith("video/") || accept.startsWith("audio/"))
+				return 1;
+			if(accept.startsWith("text/css"))
+				return 4;
+		}
+		return TYPES.length - 1;
+	}
+
+	private static int indexOf(String type){
+		for(int i = 0; i < TYPES.length; i++)
+			if(TYPES[i].equals(type))
+				return i;
+		return -1;
+	}
+
+	private static Pattern glob(String rule){
+		StringBuilder regex = new StringBuilder();
+		for(char c : rule.toCharArray()){
+			if(c == '*')
+				regex.append(".*");
+			else if(c == '?')
+				regex.append('.');
+			else
+				regex.append(Pattern.quote(String.valueOf(c)));
+		}
+		return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+	}
+
+	/**
+	 * read request line and headers, ISO-8859-1
+	 */
+	private static List<String> readHead(InputStream in) throws IOException{
+		List<String> lines = new ArrayList<String>();
+		String line;
+		while((line = readLine(in)) != null && line.length() > 0)
+			lines.add(line);
+		return lines;
+	}
+
+	/**
+	 * one header line without line end, null at end of stream
+	 */
+	private static String readLine(InputStream in) throws IOException{
+		StringBuilder line = new StringBuilder();
+		int c;
+		while((c = in.read()) >= 0){
+			if(c == '\n')
+				return line.toString();
+			if(c != '\r')
+				line.append((char)c);
+		}
+		return line.length() == 0 ? null : line.toString();
+	}
+
+	private static String header(List<String> head, String name){
+		for(int i = 1; i < head.size(); i++)
+			if(head.get(i).regionMatches(true, 0, name + ":", 0, name.length() + 1))
+				return head.get(i).substring(name.length() + 1).trim();
+		return null;
+	}
+
+	private static boolean isHop(String field){
+		String name = StringUtils.substringBefore(field, ":").trim();
+		return "Proxy-Connection".equalsIgnoreCase(name) || "Connection".equalsIgnoreCase(name) || "Keep-Alive".equalsIgnoreCase(name);
+	}
+
+	private static boolean isChunked(List<String> head){
+		return StringUtils.containsIgnoreCase(header(head, "Transfer-Encoding"), "chunked");
+	}
+
+	private static boolean hasBody(List<String> head){
+		return isChunked(head) || NumberUtils.toLong(header(head, "Content-Length"), 0) > 0;
+	}
+
+	private static int status(List<String> response){
+		return NumberUtils.toInt(StringUtils.substringBefore(StringUtils.substringAfter(response.get(0), " "), " "), 0);
+	}
+
+	/**
+	 * whether sender keeps connection open after this message, HTTP/1.1 does unless it says close
+	 */
+	private static boolean keepAlive(String version, List<String> head){
+		String connection = header(head, "Proxy-Connection");
+		if(connection == null)
+			connection = header(head, "Connection");
+		if("HTTP/1.0".equalsIgnoreCase(version))
+			return StringUtils.containsIgnoreCase(connection, "keep-alive");
+		return !StringUtils.containsIgnoreCase(connection, "close");
+	}
+
+	/**
+	 * write message head without hop headers, then own connection header if any
+	 *
+	 * @return bytes written
+	 */
+	private static long writeHead(OutputStream out, List<String> head, String connection) throws IOException{
+		StringBuilder buf = new StringBuilder(head.get(0)).append("\r\n");
+		for(int i = 1; i < head.size(); i++)
+			if(!isHop(head.get(i)))
+				buf.append(head.get(i)).append("\r\n");
+		if(connection != null)
+			buf.append("Connection: ").append(connection).append("\r\n");
+		byte[] bytes = buf.append("\r\n").toString().getBytes("ISO-8859-1");
+		out.write(bytes);
+		return bytes.length;
+	}
+
+	/**
+	 * relay message body framed by its head, chunked or Content-Length,
+	 * body without either is empty for request and runs to end of stream for answer
+	 *
+	 * @param out - null to drop the body
+	 * @return bytes relayed
+	 */
+	private static long body(InputStream in, OutputStream out, List<String> head, boolean toEnd) throws IOException{
+		if(isChunked(head))
+			return chunked(in, out);
+
+		String length = header(head, "Content-Length");
+		if(length == null)
+			return toEnd ? copy(in, out, Long.MAX_VALUE) : 0;
+		long size = NumberUtils.toLong(length, -1);
+		if(size < 0)
+			throw new IOException("bad Content-Length "+length);
+		if(copy(in, out, size) < size)
+			throw new EOFException("body ends early");
+		return size;
+	}
+
+	/**
+	 * relay chunked body as it is, chunk by chunk up to trailers
+	 */
+	private static long chunked(InputStream in, OutputStream out) throws IOException{
+		long total = 0;
+		while(true){
+			String line = readLine(in);
+			if(line == null)
+				throw new EOFException("chunked body ends early");
+			total += write(out, line);
+			long size;
+			try{
+				size = Long.parseLong(StringUtils.substringBefore(line, ";").trim(), 16);
+			}catch(NumberFormatException ex){
+				throw new IOException("bad chunk size "+line);
+			}
+
+			if(size == 0){
+				do{
+					line = readLine(in);
+					if(line == null)
+						throw new EOFException("chunked body ends early");
+					total += write(out, line);
+				}while(line.length() > 0);
+				return total;
+			}
+
+			//chunk data and its line end
+			if(copy(in, out, size + 2) < size + 2)
+				throw new EOFException("chunked body ends early");
+			total += size + 2;
+		}
+	}
+
+	private static int write(OutputStream out, String line) throws IOException{
+		byte[] bytes = (line + "\r\n").getBytes("ISO-8859-1");
+		if(out != null)
+			out.write(bytes);
+		return bytes.length;
+	}
+
+	private static void answer(OutputStream out, String status, boolean close) throws IOException{
+		out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: " + (close ? "close" : "keep-alive") + "\r\n\r\n").getBytes("ISO-8859-1"));
+		out.flush();
+	}
+
+	private static long copy(InputStream in, OutputStream out, long limit) throws IOException{
+		byte[] buf = new byte[BUFFER];
+		long total = 0;
+		while(total < limit){
+			int read = in.read(buf, 0, (int)Math.min(buf.length, limit - total));
+			if(read < 0)
+				break;
+			if(out != null)
+				out.write(buf, 0, read);
+			total += read;
+		}
+		return total;
+	}
+
+	private static void close(Socket socket){
+		if(socket == null)
+			return;
+		try{
+			socket.close();
+		}catch(IOException ex){
+			//ignore
+		}
+	}
+
+	/**
+	 * proxy counters, saved bytes and time are estimated
+	 */
+	public static class Stats{
+		private final long requests;
+		private final long blocked;
+		private final long bytes;
+		private final long time;
+
+		Stats(long requests, long blocked, long bytes, long time){
+			this.requests = requests;
+			this.blocked = blocked;
+			this.bytes = bytes;
+			this.time = time;
+		}
+
+		/**
+		 * difference from earlier counters
+		 *
+		 * @param earlier - counters taken before
+		 * @return statistic between them
+		 */
+		public Stats since(Stats earlier){
+			return new Stats(requests - earlier.requests, blocked - earlier.blocked, bytes - earlier.bytes, time - earlier.time);
+		}
+
+		public long getRequests(){
+			return requests;
+		}
+
+		public long getBlocked(){
+			return blocked;
+		}
+
+		/**
+		 * estimated bytes not downloaded
+		 *
+		 * @return bytes
+		 */
+		public long getBytes(){
+			return bytes;
+		}
+
+		/**
+		 * estimated fetch time saved, sum of blocked requests, unit: ms
+		 *
+		 * @return time
+		 */
+		public long getTime(){
+			return time;
+		}
+
+		@Override
+		public String toString(){
+			return blocked + " of " + requests + " requests blocked, saved ~" + bytes / 1024 + "KB and ~" + time + "ms";
+		}
+	}
+}
@@ -22,6 +22,7 @@ import java.util.Arrays;
 import java.util.Properties;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.openqa.selenium.WebDriver;
@@ -43,11 +44,29 @@ import com.smartqa.utils.DiskUtils;
  * 	<li>Firefox</li>
  * 	<li>Chrome</li>
  * 	<li>IE</li>
+ * 	<li>Simulated - no real browser, see {@link SimulatedDriver}</li>
  * </ul>
  * </p>
  * 
  * <p>
  * To enable each browser, edit the necessary path in config/smartqa.ini file.
+ * Browser used when type not given is Default_Browser in the same file, Firefox if not set.
+ * </p>
+ * 
+ * <p>
+ * Every driver is created with lightweight profile named by Browser_Profile in the same file 
+ * or -Dsmartqa.profile, like headless without images, see {@link BrowserProfile}.
+ * </p>
+ * 
+ * <p>
+ * When Proxy_Block rules are set in the same file, Chrome and Firefox drivers load pages through
+ * local proxy dropping third-party and heavy resources, see {@link BlockingProxy}.
+ * IE is not wired since its proxy is system wide.
+ * </p>
+ * 
+ * <p>
+ * Drivers for scenarios should be taken by {@link #lease(String)} and given back by {@link #release(WebDriver)},
+ * so warm sessions can be reused when session pool is enabled, see {@link SessionPool}.
  * </p>
  * 
  * @version 1.0
@@ -60,6 +79,9 @@ public class Browser {
 	private boolean firefoxReady = false;
 	private boolean ieReady = false;
 	private boolean chromeReady = false;
+	private SessionPool pool;
+	private BrowserProfile profile;
+	private BlockingProxy proxy;
 	
 	private static Browser instance;
 	
@@ -78,6 +100,34 @@ public class Browser {
 		}catch(Exception ex){
 			LOG.error("Failed to init Browser, caused by: "+ex.getMessage(), ex);
 		}
+		
+		String profileName = System.getProperty("smartqa.profile", browserProp.getProperty("Browser_Profile"));
+		if(!StringUtils.isBlank(profileName)){
+			try{
+				profile = BrowserProfile.load(browserProp, profileName.trim());
+				LOG.info("Browser profile: "+profile);
+				if(profile.isHeadless() && firefoxReady)
+					LOG.warn("Firefox ignores headless of profile "+profile.getName()+", it needs Firefox 56+ which this FirefoxDriver can't drive");
+			}catch(Exception ex){
+				LOG.error("Browser profile not used, caused by: "+ex.getMessage());
+			}
+		}
+		
+		String rules = browserProp.getProperty("Proxy_Block");
+		if(!StringUtils.isBlank(rules)){
+			try{
+				BlockingProxy blocking = new BlockingProxy(rules);
+				blocking.start(NumberUtils.toInt(browserProp.getProperty("Proxy_Port"), 0));
+				proxy = blocking;
+			}catch(Exception ex){
+				LOG.error("Blocking proxy not used, caused by: "+ex.getMessage());
+			}
+		}
+		
+		pool = new SessionPool(this, 
+				NumberUtils.toInt(browserProp.getProperty("Session_Pool_Size"), 0),
+				NumberUtils.toInt(browserProp.getProperty("Session_Max_Use"), 20),
+				NumberUtils.toLong(browserProp.getProperty("Session_Max_Idle"), 300));
 	}
 	
 	/**
@@ -93,6 +143,19 @@ public class Browser {
 		}
 	}
 	
+	/**
+	 * quit warm sessions and proxy of the instance, if it was ever created,
+	 * a JVM which never used browser doesn't start anything just to stop it
+	 */
+	public static void shutdownInstance(){
+		Browser current;
+		synchronized(Browser.class){
+			current = instance;
+		}
+		if(current != null)
+			current.shutdown();
+	}
+	
 	/**
 	 * get WebDriver by browser type
 	 * 
@@ -100,15 +163,82 @@ public class Browser {
 	 * @return WebDriver
 	 */
 	public WebDriver getDriver(String type){
+		if(type == null)
+			type = browserProp.getProperty("Default_Browser");
+		
+		WebDriver driver;
 		if("Chrome".equalsIgnoreCase(type))
-			return getChromeDriver();
+			driver = getChromeDriver();
 		else if("IE".equalsIgnoreCase(type))
-			return getIEDriver();
+			driver = getIEDriver();
 		else if("Firefox".equalsIgnoreCase(type))
-			return getFirefoxDriver();
+			driver = getFirefoxDriver();
+		else if("Simulated".equalsIgnoreCase(type))
+			driver = getSimulatedDriver();
+		else{
+			LOG.warn("Unknown type: "+type+", using default Firefox Driver");
+			driver = getFirefoxDriver();
+		}
 		
-		LOG.warn("Unknown type: "+type+", using default Firefox Driver");
-		return getFirefoxDriver();
+		if(driver != null && profile != null)
+			profile.resize(driver);
+		return driver;
+	}
+	
+	/**
+	 * get lightweight profile applied to created drivers
+	 * 
+	 * @return profile, null if not configured
+	 */
+	public BrowserProfile getProfile(){
+		return profile;
+	}
+	
+	/**
+	 * get blocking proxy drivers load pages through
+	 * 
+	 * @return proxy, null if not configured
+	 */
+	public BlockingProxy getProxy(){
+		return proxy;
+	}
+	
+	/**
+	 * lease WebDriver by browser type from session pool, 
+	 * a new driver is created when pool disabled or no idle one
+	 * 
+	 * @param type - string of browser name, for example: IE, Firefox or Chrome
+	 * @return WebDriver
+	 */
+	public WebDriver lease(String type){
+		return pool.lease(type);
+	}
+	
+	/**
+	 * give leased WebDriver back, it is reset and kept warm or quit
+	 * 
+	 * @param driver
+	 */
+	public void release(WebDriver driver){
+		pool.release(driver);
+	}
+	
+	/**
+	 * quit all warm sessions, call it before exit
+	 */
+	public void shutdown(){
+		pool.shutdown();
+		if(proxy != null)
+			proxy.stop();
+	}
+	
+	/**
+	 * get session pool, for its statistic
+	 * 
+	 * @return SessionPool
+	 */
+	public SessionPool getPool(){
+		return pool;
 	}
 	
 	/**
@@ -118,8 +248,17 @@ public class Browser {
 	 */
 	public WebDriver getFirefoxDriver(){
 		if(firefoxReady){
+			//clean profile without user's extensions
+			if(profile != null){
+				FirefoxProfile fp = new FirefoxProfile();
+				profile.apply(fp);
+				useProxy(fp);
+				return new FirefoxDriver(fp);
+			}
+			
 			ProfilesIni allProfiles = new ProfilesIni();
 			FirefoxProfile fp = allProfiles.getProfile("default");
+			useProxy(fp);
 //			fp.setPreference("capability.policy.policynames", "strict") ;
 //			fp.setPreference("capability.policy.strict.Window.alert", "noAccess") ;
 //			fp.setPreference("capability.policy.strict.Window.confirm", "noAccess") ;
@@ -153,6 +292,13 @@ public class Browser {
 	public WebDriver getChromeDriver(){
 		if(chromeReady){
 			ChromeOptions option = new ChromeOptions();
+			if(proxy != null)
+				option.addArguments("--proxy-server=http://" + proxy.getAddress());
+			if(profile != null){
+				option.addArguments("--disable-popup-blocking");
+				option.addArguments(profile.chromeArguments());
+				return new ChromeDriver(option);
+			}
 			option.addArguments(Arrays.asList("--disable-popup-blocking", "--start-maximized"));
 			//option.addArguments(Arrays.asList("--user-data-dir=C:/Users/renmingyan/AppData/Local/Google/Chrome/User Data/Default"));
 			return new ChromeDriver(option);
@@ -160,6 +306,24 @@ public class Browser {
 		return null;
 	}
 	
+	/**
+	 * create SimulatedDriver, pages, latency and failure configured in smartqa.ini
+	 * 
+	 * @return SimulatedDriver
+	 */
+	public WebDriver getSimulatedDriver(){
+		SimulatedDriver driver = new SimulatedDriver();
+		String pages = browserProp.getProperty("Simulator_Page");
+		if(!StringUtils.isEmpty(pages))
+			driver.pages(new File(pages));
+		
+		driver.latency(NumberUtils.toLong(browserProp.getProperty("Simulator_Latency"), 0),
+				NumberUtils.toLong(browserProp.getProperty("Simulator_Jitter"), 0),
+				"exponential".equalsIgnoreCase(browserProp.getProperty("Simulator_Distribution")));
+		driver.failure(NumberUtils.toDouble(browserProp.getProperty("Simulator_Failure"), 0));
+		return driver;
+	}
+	
 	/**
 	 * Overwrite the toString method display browser resource status
 	 */
@@ -173,6 +337,22 @@ public class Browser {
 		return buf.toString();
 	}
 	
+	/**
+	 * point Firefox profile at blocking proxy, for all hosts including localhost
+	 */
+	private void useProxy(FirefoxProfile fp){
+		if(proxy == null || fp == null)
+			return;
+		
+		String[] address = proxy.getAddress().split(":");
+		fp.setPreference("network.proxy.type", 1);
+		fp.setPreference("network.proxy.http", address[0]);
+		fp.setPreference("network.proxy.http_port", Integer.parseInt(address[1]));
+		fp.setPreference("network.proxy.ssl", address[0]);
+		fp.setPreference("network.proxy.ssl_port", Integer.parseInt(address[1]));
+		fp.setPreference("network.proxy.no_proxies_on", "");
+	}
+	
 	/**
 	 * validate browser available or not
 	 */
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.webdriver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.firefox.FirefoxProfile;
+
+import com.smartqa.exception.SmartQAException;
+
+/**
+ * <p>
+ * Named lightweight browser profile, chosen by Browser_Profile in config/smartqa.ini
+ * or -Dsmartqa.profile, settings of profile <b>light</b> are like:
+ * </p>
+ *
+ * <p style="color:gray">
+ * Profile_light_Headless = true<br/>
+ * Profile_light_Images = false<br/>
+ * Profile_light_Fonts = false<br/>
+ * Profile_light_Throttling = false<br/>
+ * Profile_light_Window = 1024x768<br/>
+ * Profile_light_Args = --lang=en
+ * </p>
+ *
+ * <p>
+ * Settings not given keep browser default. Chrome gets them as command line switches, Args are extra Chrome switches.
+ * Firefox gets them as preferences of a clean profile instead of user's default one. Headless is not supported
+ * for Firefox, it needs Firefox 56+ which legacy FirefoxDriver of this Selenium can't drive, a warning is logged instead.
+ * IE and simulated browser only take window size.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class BrowserProfile {
+	private final String name;
+	private boolean headless = false;
+	private boolean images = true;
+	private boolean fonts = true;
+	private boolean throttling = true;
+	private int width = 0;
+	private int height = 0;
+	private List<String> args = new ArrayList<String>();
+
+	private BrowserProfile(String name){
+		this.name = name;
+	}
+
+	/**
+	 * read profile settings
+	 *
+	 * @param prop - smartqa.ini
+	 * @param name - profile name
+	 * @return profile
+	 * @throws SmartQAException if profile has no settings or window size is invalid
+	 */
+	public static BrowserProfile load(Properties prop, String name){
+		String prefix = "Profile_" + name + "_";
+		boolean found = false;
+		for(String key : prop.stringPropertyNames())
+			found |= key.startsWith(prefix);
+		if(!found)
+			throw new SmartQAException("no settings of browser profile "+name+" in smartqa.ini");
+
+		BrowserProfile profile = new BrowserProfile(name);
+		profile.headless = flag(prop, prefix + "Headless", false);
+		profile.images = flag(prop, prefix + "Images", true);
+		profile.fonts = flag(prop, prefix + "Fonts", true);
+		profile.throttling = flag(prop, prefix + "Throttling", true);
+
+		String window = StringUtils.trimToEmpty(prop.getProperty(prefix + "Window"));
+		if(window.length() > 0){
+			String[] size = window.toLowerCase().split("\\s*[x,]\\s*");
+			profile.width = size.length == 2 ? NumberUtils.toInt(size[0]) : 0;
+			profile.height = size.length == 2 ? NumberUtils.toInt(size[1]) : 0;
+			if(profile.width <= 0 || profile.height <= 0)
+				throw new SmartQAException("invalid window size of browser profile "+name+": "+window);
+		}
+
+		for(String arg : StringUtils.trimToEmpty(prop.getProperty(prefix + "Args")).split("\\s+"))
+			if(arg.length() > 0)
+				profile.args.add(arg);
+
+		return profile;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public boolean isHeadless(){
+		return headless;
+	}
+
+	/**
+	 * Chrome command line switches of profile
+	 *
+	 * @return switches
+	 */
+	public List<String> chromeArguments(){
+		List<String> list = new ArrayList<String>();
+		list.add("--disable-extensions");
+		list.add("--no-first-run");
+		list.add("--no-default-browser-check");
+		if(headless){
+			list.add("--headless");
+			list.add("--disable-gpu");
+			list.add("--hide-scrollbars");
+			list.add("--mute-audio");
+		}
+		if(!images)
+			list.add("--blink-settings=imagesEnabled=false");
+		if(!fonts)
+			list.add("--disable-remote-fonts");
+		if(!throttling){
+			list.add("--disable-background-timer-throttling");
+			list.add("--disable-backgrounding-occluded-windows");
+			list.add("--disable-renderer-backgrounding");
+		}
+		if(width > 0)
+			list.add("--window-size=" + width + "," + height);
+		list.addAll(args);
+		return list;
+	}
+
+	/**
+	 * set Firefox preferences of profile
+	 *
+	 * @param fp - clean Firefox profile
+	 */
+	public void apply(FirefoxProfile fp){
+		fp.setPreference("browser.shell.checkDefaultBrowser", false);
+		fp.setPreference("app.update.enabled", false);
+		fp.setPreference("extensions.update.enabled", false);
+		if(!images)
+			fp.setPreference("permissions.default.image", 2);
+		if(!fonts){
+			fp.setPreference("browser.display.use_document_fonts", 0);
+			fp.setPreference("gfx.downloadable_fonts.enabled", false);
+		}
+		//budget throttling prefs of Firefox 56+ don't apply to versions legacy driver runs
+		if(!throttling)
+			fp.setPreference("dom.min_background_timeout_value", 4);
+	}
+
+	/**
+	 * set window size of created driver, nothing happens if profile has no window size
+	 *
+	 * @param driver
+	 */
+	public void resize(WebDriver driver){
+		if(width > 0)
+			driver.manage().window().setSize(new Dimension(width, height));
+	}
+
+	@Override
+	public String toString(){
+		return name + " (headless " + headless + ", images " + images + ", fonts " + fonts + ", throttling " + throttling
+				+ (width > 0 ? ", window " + width + "x" + height : "") + (args.isEmpty() ? "" : ", args " + args) + ")";
+	}
+
+	private static boolean flag(Properties prop, String key, boolean fallback){
+		String value = StringUtils.trimToEmpty(prop.getProperty(key));
+		return value.length() == 0 ? fallback : Boolean.parseBoolean(value);
+	}
+}
@@ -18,7 +18,15 @@ package com.smartqa.webdriver;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +36,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.smartqa.exception.SmartQAException;
+import com.smartqa.utils.CommonUtils;
 import com.smartqa.utils.DiskUtils;
 
 /**
@@ -41,6 +51,17 @@ import com.smartqa.utils.DiskUtils;
  * Path mapping are stored in path library, default library is classpath:<b>path</b> folder.<br/>
  * In path library, each single file stands for one namespace.<br/>
  * Each namespace stores many xpath to keyword mapping.<br/>
+ * Each xpath is parsed into {@link PathTemplate} when loaded, invalid ones are reported and skipped.<br/>
+ * </p>
+ * 
+ * <p>
+ * Long running process can watch path library by -Dsmartqa.path.watch=true or {@link #watch()},
+ * only changed namespace files are parsed again, deleted ones are dropped.
+ * </p>
+ * 
+ * <p>
+ * Large library could be compiled into one binary index by {@link PathIndex}, 
+ * it is used when up to date, otherwise text files are loaded.
  * </p>
  * 
  * @version 1.0
@@ -50,7 +71,16 @@ import com.smartqa.utils.DiskUtils;
 public class PathController {
 	private final static Logger LOG = LogManager.getLogger("PathController");
 	private final String pathLib = System.getProperty("smartqa.path","path");
-	private Map<String, Map<String, String>> pathMap = new ConcurrentHashMap<String, Map<String, String>>();
+	private Map<String, Map<String, PathTemplate>> pathMap = new ConcurrentHashMap<String, Map<String, PathTemplate>>();
+	//last modified time and length of each loaded namespace file
+	private Map<String, String> stamps = new HashMap<String, String>();
+	private Thread watcher;
+	//compiled path index, used until library changed
+	private volatile PathIndex index;
+	private Map<String, PathTemplate> indexTemplates = new ConcurrentHashMap<String, PathTemplate>();
+	
+	//wait before reload after change detected, unit: ms
+	private final static long WATCH_DELAY = 200;
 	
 	private static PathController instance;
 	
@@ -76,7 +106,14 @@ public class PathController {
 			return;
 		}
 		
-		loadPath();
+		index = PathIndex.open(pathLib, PathIndex.defaultFile(pathLib));
+		if(index != null)
+			LOG.info("Load path from index, "+index.namespaces().size()+" namespaces found");
+		else
+			loadPath();
+		
+		if("true".equalsIgnoreCase(System.getProperty("smartqa.path.watch")))
+			watch();
 	}
 	
 	/**
@@ -86,6 +123,13 @@ public class PathController {
 	 */
 	public List<String> listNamespace(){
 		List<String> list = new LinkedList<String>();
+		PathIndex current = index;
+		if(current != null){
+			for(String namespace : current.namespaces())
+				list.add(namespace + " - " + current.keys(namespace).size());
+			return list;
+		}
+		
 		for(String namespace : pathMap.keySet()){
 			String info = namespace + " - " + pathMap.get(namespace).size();
 			list.add(info);
@@ -94,46 +138,183 @@ public class PathController {
 		return list;
 	}
 	
+	/**
+	 * list all keys in namespace
+	 * 
+	 * @param namespace
+	 * @return List of key, empty if namespace not found
+	 */
+	public List<String> listKeys(String namespace){
+		PathIndex current = index;
+		if(current != null)
+			return current.keys(namespace);
+		
+		List<String> list = new LinkedList<String>();
+		Map<String, PathTemplate> subMap = pathMap.get(namespace);
+		if(subMap != null)
+			list.addAll(subMap.keySet());
+		
+		return list;
+	}
+	
 	/**
 	 * load path mapping in path library
 	 */
 	private void loadPath(){
-		File lib = new File(pathLib);
+		int size = reload();
+		LOG.info("Load path successfully, "+size+" paths found");
+	}
+	
+	/**
+	 * reload path mapping in path library, only namespace files changed since last load are parsed,
+	 * namespaces whose file was removed are dropped
+	 */
+	public void refresh(){
+		int beforeSize = 0;
+		for(Map<String, PathTemplate> subMap : pathMap.values())
+			beforeSize += subMap.size();
+		if(index != null)
+			beforeSize = index.size();
+		
+		int laterSize = reload();
+		LOG.info("Refresh path library, "+(laterSize-beforeSize)+" path(s) added.");
+	}
+	
+	/**
+	 * watch path library folder, reload changed namespace files automatically.<br/>
+	 * Started at construction when -Dsmartqa.path.watch=true
+	 */
+	public synchronized void watch(){
+		if(watcher != null || !DiskUtils.folderExist(pathLib))
+			return;
+		
+		final WatchService service;
 		try{
-			int size = 0;
-			for(File subLib : lib.listFiles()){
-				Properties subProp = new Properties();
-				subProp.load(new InputStreamReader(new FileInputStream(subLib), "utf-8"));
-				
-				Map<String, String> subMap = new ConcurrentHashMap<String, String>();
-				for(Object key : subProp.keySet())
-					subMap.put(key.toString(), subProp.getProperty(key.toString()));
-				
-				size += subMap.size();
-				String namespace = DiskUtils.filterFileName(subLib.getName());
-				pathMap.put(namespace, subMap);
+			service = FileSystems.getDefault().newWatchService();
+			Paths.get(pathLib).register(service, StandardWatchEventKinds.ENTRY_CREATE, 
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		}catch(IOException ex){
+			LOG.warn("Can't watch path library, caused by "+ex.getMessage());
+			return;
+		}
+		
+		watcher = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					while(true){
+						WatchKey key = service.take();
+						//editor usually writes file in several steps, wait them finish
+						CommonUtils.waiting(WATCH_DELAY);
+						key.pollEvents();
+						key.reset();
+						WatchKey more;
+						while((more = service.poll()) != null){
+							more.pollEvents();
+							more.reset();
+						}
+						
+						refresh();
+					}
+				}catch(InterruptedException ex){
+					//stop watching
+				}catch(ClosedWatchServiceException ex){
+					//stop watching
+				}
 			}
+		}, "path-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+		LOG.info("Watching path library "+pathLib);
+	}
+	
+	/**
+	 * load changed namespace files and drop removed ones,
+	 * each namespace map is built completely before swapped in, so readers never see a half loaded one.
+	 * Out of date index keeps serving until every namespace file is loaded, then it is dropped at once
+	 * 
+	 * @return total path count
+	 */
+	private synchronized int reload(){
+		boolean stale = false;
+		if(index != null){
+			if(index.isUpToDate(pathLib))
+				return index.size();
+			stale = true;
+		}
+		
+		File[] files = new File(pathLib).listFiles();
+		if(files == null)
+			files = new File[0];
+		
+		Map<String, String> found = new HashMap<String, String>();
+		for(File subLib : files){
+			if(!subLib.isFile() || subLib.getName().startsWith(".") || subLib.getName().indexOf('.') < 0)
+				continue;
+			
+			String namespace = DiskUtils.filterFileName(subLib.getName());
+			String stamp = subLib.lastModified() + ":" + subLib.length();
+			found.put(namespace, stamp);
+			if(stamp.equals(stamps.get(namespace)) && pathMap.containsKey(namespace))
+				continue;
 			
-			LOG.info("Load path successfully, "+size+" paths found");
-		}catch(Exception ex){
-			LOG.warn("Error happen when loading path, caused by "+ex.getMessage());
+			try{
+				pathMap.put(namespace, loadNamespace(namespace, subLib));
+				stamps.put(namespace, stamp);
+			}catch(Exception ex){
+				LOG.warn("Error happen when loading path "+subLib.getName()+", caused by "+ex.getMessage());
+			}
 		}
+		
+		for(String namespace : new LinkedList<String>(pathMap.keySet()))
+			if(!found.containsKey(namespace)){
+				pathMap.remove(namespace);
+				stamps.remove(namespace);
+				LOG.info("Namespace "+namespace+" removed from path library");
+			}
+		
+		//library changed, index is out of date, text files are used from now on
+		if(stale){
+			index = null;
+			indexTemplates.clear();
+			LOG.info("Path library changed, stop using path index");
+		}
+		
+		int size = 0;
+		for(Map<String, PathTemplate> subMap : pathMap.values())
+			size += subMap.size();
+		
+		return size;
 	}
 	
 	/**
-	 * reload path mapping in path library
+	 * parse one namespace file
+	 * 
+	 * @param namespace
+	 * @param subLib - namespace file
+	 * @return path templates of namespace
+	 * @throws IOException
 	 */
-	public void refresh(){
-		int beforeSize = 0;
-		int laterSize = 0;
-		for(String namespace : pathMap.keySet())
-			beforeSize += pathMap.get(namespace).size();
+	private Map<String, PathTemplate> loadNamespace(String namespace, File subLib) throws IOException{
+		Properties subProp = new Properties();
+		InputStreamReader reader = new InputStreamReader(new FileInputStream(subLib), "utf-8");
+		try{
+			subProp.load(reader);
+		}finally{
+			reader.close();
+		}
 		
-		loadPath();
-		for(String namespace : pathMap.keySet())
-			laterSize += pathMap.get(namespace).size();
+		Map<String, PathTemplate> subMap = new HashMap<String, PathTemplate>();
+		for(String key : subProp.stringPropertyNames())
+			try{
+				subMap.put(key, PathTemplate.parse(subProp.getProperty(key)));
+			}catch(SmartQAException ex){
+				LOG.error("Invalid path "+namespace+"."+key+", caused by "+ex.getMessage());
+			}
 		
-		LOG.info("Refresh path library, "+(laterSize-beforeSize)+" path(s) added.");
+		if(LOG.isDebugEnabled())
+			LOG.debug("Load namespace "+namespace+", "+subMap.size()+" paths found");
+		return subMap;
 	}
 	
 	/**
@@ -144,16 +325,51 @@ public class PathController {
 	 * @return xpath
 	 */
 	public String getPath(String namespace, String key){
-		if(!pathMap.containsKey(namespace)){
+		PathTemplate template = getTemplate(namespace, key);
+		return template == null ? null : template.toString();
+	}
+	
+	/**
+	 * fetch parsed path template by namespace and keyword
+	 * 
+	 * @param namespace
+	 * @param key
+	 * @return path template or null if not found
+	 */
+	public PathTemplate getTemplate(String namespace, String key){
+		PathTemplate template;
+		PathIndex current = index;
+		if(current != null){
+			String id = namespace + '\u0000' + key;
+			template = indexTemplates.get(id);
+			if(template != null)
+				return template;
+			
+			String xpath = current.lookup(namespace, key);
+			if(xpath == null){
+				if(current.hasNamespace(namespace))
+					LOG.warn("path library "+namespace+" doesn't contain the key: "+key);
+				else
+					LOG.warn("path library doestn't contain the namespace: "+namespace);
+				return null;
+			}
+			
+			//index only holds valid xpath, checked when compiled
+			template = PathTemplate.parse(xpath);
+			indexTemplates.put(id, template);
+			return template;
+		}
+		
+		Map<String, PathTemplate> subMap = pathMap.get(namespace);
+		if(subMap == null){
 			LOG.warn("path library doestn't contain the namespace: "+namespace);
 			return null;
 		}
 		
-		if(!pathMap.get(namespace).containsKey(key)){
+		template = subMap.get(key);
+		if(template == null)
 			LOG.warn("path library "+namespace+" doesn't contain the key: "+key);
-			return null;
-		}
 		
-		return pathMap.get(namespace).get(key);
+		return template;
 	}
 }
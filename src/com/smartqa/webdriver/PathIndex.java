@@ -0,0 +1,494 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.webdriver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.smartqa.exception.SmartQAException;
+import com.smartqa.utils.DiskUtils;
+
+/**
+ * <p>
+ * Compact binary index of the whole path library, for fast startup of large library.<br/>
+ * Compile it by: <b>java com.smartqa.webdriver.PathIndex [path library] [index file]</b>,
+ * default index file is <b>path.idx</b> next to the path library folder.
+ * </p>
+ *
+ * <p>
+ * Index file is memory mapped and queried directly, nothing is copied into heap:
+ * <ul>
+ * 	<li>header - magic, version, stamp of library files, counts</li>
+ * 	<li>namespaces - sorted, each with name string and offset of its entries</li>
+ * 	<li>entries - sorted by key inside namespace, key string and xpath string</li>
+ * 	<li>strings - interned UTF-8 strings, each stored once</li>
+ * </ul>
+ * Index is ignored when library files changed after it is compiled, see {@link #open(String, File)}.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class PathIndex {
+	private final static Logger LOG = LogManager.getLogger("PathIndex");
+	private final static Charset UTF8 = Charset.forName("utf-8");
+
+	private final static int MAGIC = 0x53514958;
+	private final static int VERSION = 1;
+	//magic, version, stamp, namespace count, entry count, string count
+	private final static int HEADER = 4 + 4 + 8 + 4 + 4 + 4;
+	private final static int NAMESPACE_SIZE = 12;
+	private final static int ENTRY_SIZE = 8;
+
+	private final ByteBuffer buffer;
+	private final int namespaceCount;
+	private final int entryStart;
+	private final int stringStart;
+
+	/**
+	 * private constructor, use {@link #open(String, File)}
+	 */
+	private PathIndex(ByteBuffer buffer){
+		this.buffer = buffer;
+		this.namespaceCount = buffer.getInt(16);
+		int entryCount = buffer.getInt(20);
+		int stringCount = buffer.getInt(24);
+		this.entryStart = HEADER + namespaceCount * NAMESPACE_SIZE;
+		this.stringStart = entryStart + entryCount * ENTRY_SIZE + stringCount * 4;
+	}
+
+	/**
+	 * compile path library from command line
+	 *
+	 * @param args - [path library] [index file]
+	 */
+	public static void main(String[] args){
+		String pathLib = args.length > 0 ? args[0] : System.getProperty("smartqa.path", "path");
+		File indexFile = args.length > 1 ? new File(args[1]) : defaultFile(pathLib);
+		compile(pathLib, indexFile);
+	}
+
+	/**
+	 * default index file of path library
+	 *
+	 * @param pathLib - path library folder
+	 * @return index file
+	 */
+	public static File defaultFile(String pathLib){
+		return new File(System.getProperty("smartqa.path.index", new File(pathLib).getPath()+".idx"));
+	}
+
+	/**
+	 * open index file, memory mapped
+	 *
+	 * @param pathLib - path library folder the index built from
+	 * @param indexFile
+	 * @return PathIndex, or null if index missing or out of date
+	 */
+	public static PathIndex open(String pathLib, File indexFile){
+		if(!indexFile.isFile())
+			return null;
+
+		try{
+			RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+			ByteBuffer buffer;
+			try{
+				buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			}finally{
+				file.close();
+			}
+
+			if(buffer.limit() < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION){
+				LOG.warn("Path index "+indexFile+" is broken, ignore it");
+				return null;
+			}
+
+			PathIndex index = new PathIndex(buffer);
+			if(!index.isUpToDate(pathLib)){
+				LOG.info("Path index "+indexFile+" is out of date, ignore it");
+				return null;
+			}
+
+			return index;
+		}catch(IOException ex){
+			LOG.warn("Can't open path index "+indexFile+", caused by "+ex.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * compile path library into index file
+	 *
+	 * @param pathLib - path library folder
+	 * @param indexFile - target index file
+	 */
+	public static void compile(String pathLib, File indexFile){
+		long start = System.currentTimeMillis();
+		List<File> files = listFiles(pathLib);
+
+		//namespace -> key -> xpath, sorted by UTF-8 bytes which is the search order
+		Map<byte[], Map<byte[], byte[]>> library = new TreeMap<byte[], Map<byte[], byte[]>>(BYTE_ORDER);
+		Map<String, byte[]> interned = new HashMap<String, byte[]>();
+		int entryCount = 0;
+		try{
+			for(File subLib : files){
+				String namespace = DiskUtils.filterFileName(subLib.getName());
+				Properties subProp = new Properties();
+				InputStreamReader reader = new InputStreamReader(new FileInputStream(subLib), "utf-8");
+				try{
+					subProp.load(reader);
+				}finally{
+					reader.close();
+				}
+
+				Map<byte[], byte[]> entries = new TreeMap<byte[], byte[]>(BYTE_ORDER);
+				for(String key : subProp.stringPropertyNames()){
+					String xpath = subProp.getProperty(key);
+					try{
+						PathTemplate.parse(xpath);
+					}catch(SmartQAException ex){
+						LOG.error("Invalid path "+namespace+"."+key+", caused by "+ex.getMessage());
+						continue;
+					}
+					entries.put(intern(key, interned), intern(xpath, interned));
+				}
+
+				entryCount += entries.size();
+				library.put(intern(namespace, interned), entries);
+			}
+
+			write(indexFile, stamp(files), library, entryCount);
+		}catch(IOException ex){
+			throw new SmartQAException("Failed to compile path index, caused by "+ex.getMessage());
+		}
+
+		LOG.info("Compile path index "+indexFile+", "+library.size()+" namespaces, "+entryCount+" paths in "
+				+(System.currentTimeMillis()-start)+"ms");
+	}
+
+	/**
+	 * lookup xpath
+	 *
+	 * @param namespace
+	 * @param key
+	 * @return xpath or null if not found
+	 */
+	public String lookup(String namespace, String key){
+		int ns = findNamespace(namespace);
+		if(ns < 0)
+			return null;
+
+		int from = buffer.getInt(HEADER + ns * NAMESPACE_SIZE + 4);
+		int count = buffer.getInt(HEADER + ns * NAMESPACE_SIZE + 8);
+		byte[] target = key.getBytes(UTF8);
+		int low = from, high = from + count - 1;
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			int cmp = compare(buffer.getInt(entryStart + mid * ENTRY_SIZE), target);
+			if(cmp < 0)
+				low = mid + 1;
+			else if(cmp > 0)
+				high = mid - 1;
+			else
+				return string(buffer.getInt(entryStart + mid * ENTRY_SIZE + 4));
+		}
+
+		return null;
+	}
+
+	/**
+	 * check index still matches library files
+	 *
+	 * @param pathLib - path library folder
+	 * @return true if no file changed since compiled
+	 */
+	public boolean isUpToDate(String pathLib){
+		return buffer.getLong(8) == stamp(listFiles(pathLib));
+	}
+
+	/**
+	 * total path count
+	 *
+	 * @return entry count
+	 */
+	public int size(){
+		return buffer.getInt(20);
+	}
+
+	/**
+	 * check namespace exists
+	 *
+	 * @param namespace
+	 * @return true if exists
+	 */
+	public boolean hasNamespace(String namespace){
+		return findNamespace(namespace) >= 0;
+	}
+
+	/**
+	 * all namespaces in index
+	 *
+	 * @return namespace list
+	 */
+	public List<String> namespaces(){
+		List<String> list = new ArrayList<String>(namespaceCount);
+		for(int i = 0; i < namespaceCount; i++)
+			list.add(string(buffer.getInt(HEADER + i * NAMESPACE_SIZE)));
+		return list;
+	}
+
+	/**
+	 * all keys of namespace, sorted
+	 *
+	 * @param namespace
+	 * @return key list, empty if namespace not found
+	 */
+	public List<String> keys(String namespace){
+		int ns = findNamespace(namespace);
+		if(ns < 0)
+			return Collections.emptyList();
+
+		int from = buffer.getInt(HEADER + ns * NAMESPACE_SIZE + 4);
+		int count = buffer.getInt(HEADER + ns * NAMESPACE_SIZE + 8);
+		List<String> list = new ArrayList<String>(count);
+		for(int i = from; i < from + count; i++)
+			list.add(string(buffer.getInt(entryStart + i * ENTRY_SIZE)));
+		return list;
+	}
+
+	/**
+	 * binary search namespace
+	 *
+	 * @param namespace
+	 * @return namespace position or -1
+	 */
+	private int findNamespace(String namespace){
+		byte[] target = namespace.getBytes(UTF8);
+		int low = 0, high = namespaceCount - 1;
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			int cmp = compare(buffer.getInt(HEADER + mid * NAMESPACE_SIZE), target);
+			if(cmp < 0)
+				low = mid + 1;
+			else if(cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * compare string in index with target bytes, without decoding it
+	 *
+	 * @param id - string id
+	 * @param target
+	 * @return compare result
+	 */
+	private int compare(int id, byte[] target){
+		int offset = stringStart + buffer.getInt(stringStart - (stringCount() - id) * 4);
+		int length = buffer.getInt(offset);
+		int min = Math.min(length, target.length);
+		for(int i = 0; i < min; i++){
+			int a = buffer.get(offset + 4 + i) & 0xFF;
+			int b = target[i] & 0xFF;
+			if(a != b)
+				return a - b;
+		}
+
+		return length - target.length;
+	}
+
+	/**
+	 * decode string in index
+	 *
+	 * @param id - string id
+	 * @return string
+	 */
+	private String string(int id){
+		int offset = stringStart + buffer.getInt(stringStart - (stringCount() - id) * 4);
+		byte[] bytes = new byte[buffer.getInt(offset)];
+		for(int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(offset + 4 + i);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * count of strings
+	 *
+	 * @return string count
+	 */
+	private int stringCount(){
+		return buffer.getInt(24);
+	}
+
+	/**
+	 * write index file, into temp file first then rename
+	 */
+	private static void write(File indexFile, long stamp, Map<byte[], Map<byte[], byte[]>> library, int entryCount) throws IOException{
+		//assign string ids
+		Map<byte[], Integer> ids = new IdentityHashMap<byte[], Integer>();
+		List<byte[]> strings = new ArrayList<byte[]>();
+		for(Map.Entry<byte[], Map<byte[], byte[]>> ns : library.entrySet()){
+			id(ns.getKey(), ids, strings);
+			for(Map.Entry<byte[], byte[]> entry : ns.getValue().entrySet()){
+				id(entry.getKey(), ids, strings);
+				id(entry.getValue(), ids, strings);
+			}
+		}
+
+		File temp = new File(indexFile.getPath()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(stamp);
+			out.writeInt(library.size());
+			out.writeInt(entryCount);
+			out.writeInt(strings.size());
+
+			int entry = 0;
+			for(Map.Entry<byte[], Map<byte[], byte[]>> ns : library.entrySet()){
+				out.writeInt(ids.get(ns.getKey()));
+				out.writeInt(entry);
+				out.writeInt(ns.getValue().size());
+				entry += ns.getValue().size();
+			}
+
+			for(Map<byte[], byte[]> entries : library.values())
+				for(Map.Entry<byte[], byte[]> item : entries.entrySet()){
+					out.writeInt(ids.get(item.getKey()));
+					out.writeInt(ids.get(item.getValue()));
+				}
+
+			//string offsets relative to string data start
+			int offset = 0;
+			for(byte[] bytes : strings){
+				out.writeInt(offset);
+				offset += 4 + bytes.length;
+			}
+			for(byte[] bytes : strings){
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}finally{
+			out.close();
+		}
+
+		if(indexFile.exists() && !indexFile.delete())
+			throw new IOException("can't replace "+indexFile);
+		if(!temp.renameTo(indexFile))
+			throw new IOException("can't rename "+temp+" to "+indexFile);
+	}
+
+	/**
+	 * assign string id
+	 */
+	private static void id(byte[] bytes, Map<byte[], Integer> ids, List<byte[]> strings){
+		if(!ids.containsKey(bytes)){
+			ids.put(bytes, strings.size());
+			strings.add(bytes);
+		}
+	}
+
+	/**
+	 * intern string as UTF-8 bytes, equal strings share one array
+	 */
+	private static byte[] intern(String value, Map<String, byte[]> interned){
+		byte[] bytes = interned.get(value);
+		if(bytes == null){
+			bytes = value.getBytes(UTF8);
+			interned.put(value, bytes);
+		}
+		return bytes;
+	}
+
+	/**
+	 * namespace files in path library, same rule as PathController
+	 *
+	 * @param pathLib
+	 * @return sorted namespace files
+	 */
+	static List<File> listFiles(String pathLib){
+		File[] files = new File(pathLib).listFiles();
+		List<File> list = new ArrayList<File>();
+		if(files == null)
+			return list;
+
+		for(File subLib : files)
+			if(subLib.isFile() && !subLib.getName().startsWith(".") && subLib.getName().indexOf('.') >= 0)
+				list.add(subLib);
+
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * stamp of library files by name, modified time and length, cheap to check without reading files
+	 *
+	 * @param files
+	 * @return stamp
+	 */
+	static long stamp(List<File> files){
+		try{
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for(File file : files)
+				digest.update((file.getName()+":"+file.lastModified()+":"+file.length()+"\n").getBytes(UTF8));
+			return ByteBuffer.wrap(digest.digest()).getLong();
+		}catch(Exception ex){
+			throw new IllegalStateException("SHA-1 not supported", ex);
+		}
+	}
+
+	//unsigned lexicographic order of UTF-8 bytes
+	private final static Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>(){
+		@Override
+		public int compare(byte[] a, byte[] b){
+			int min = Math.min(a.length, b.length);
+			for(int i = 0; i < min; i++){
+				int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+				if(cmp != 0)
+					return cmp;
+			}
+			return a.length - b.length;
+		}
+	};
+}
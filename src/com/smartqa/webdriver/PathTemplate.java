@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.webdriver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.smartqa.exception.SmartQAException;
+
+/**
+ * <p>
+ * Pre-parsed xpath in path library.<br/>
+ * Xpath may contain placeholders like <b>{0}</b>, <b>{1}</b>, which are filled by args when locate web element.
+ * Template is parsed once when path library loaded, into literal segments and placeholder slots,
+ * so expanding is a plain concatenation, args are never treated as regex.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class PathTemplate {
+	private final String raw;
+	private final String[] literals;
+	private final int[] slots;
+	private final int arity;
+	private final int length;
+
+	/**
+	 * private constructor, use {@link #parse(String)}
+	 */
+	private PathTemplate(String raw, String[] literals, int[] slots, int arity){
+		this.raw = raw;
+		this.literals = literals;
+		this.slots = slots;
+		this.arity = arity;
+
+		int size = 0;
+		for(String literal : literals)
+			size += literal.length();
+		this.length = size;
+	}
+
+	/**
+	 * parse xpath into template, placeholder index must start from 0 without gap
+	 *
+	 * @param raw - xpath in path library
+	 * @return PathTemplate
+	 * @throws SmartQAException if xpath is empty or placeholder index has gap
+	 */
+	public static PathTemplate parse(String raw){
+		if(raw == null || raw.trim().length() == 0)
+			throw new SmartQAException("xpath is empty");
+
+		List<String> literals = new ArrayList<String>();
+		List<Integer> slots = new ArrayList<Integer>();
+		int from = 0;
+		int pos = 0;
+		while((pos = raw.indexOf('{', pos)) >= 0){
+			int end = pos + 1;
+			while(end < raw.length() && Character.isDigit(raw.charAt(end)))
+				end++;
+
+			//only {digits} is placeholder, other braces are part of xpath
+			if(end == pos + 1 || end >= raw.length() || raw.charAt(end) != '}'){
+				pos++;
+				continue;
+			}
+
+			literals.add(raw.substring(from, pos));
+			slots.add(Integer.parseInt(raw.substring(pos + 1, end)));
+			from = end + 1;
+			pos = from;
+		}
+		literals.add(raw.substring(from));
+
+		int arity = 0;
+		for(int slot : slots)
+			arity = Math.max(arity, slot + 1);
+		for(int i = 0; i < arity; i++)
+			if(!slots.contains(i))
+				throw new SmartQAException("xpath placeholder {"+i+"} is missing, but {"+(arity-1)+"} is used");
+
+		int[] slotArray = new int[slots.size()];
+		for(int i = 0; i < slotArray.length; i++)
+			slotArray[i] = slots.get(i);
+
+		return new PathTemplate(raw, literals.toArray(new String[literals.size()]), slotArray, arity);
+	}
+
+	/**
+	 * fill placeholders by args
+	 *
+	 * @param args - one arg for each placeholder index
+	 * @return xpath
+	 * @throws SmartQAException if args count doesn't match placeholders
+	 */
+	public String expand(String... args){
+		int count = args == null ? 0 : args.length;
+		if(count != arity)
+			throw new SmartQAException("xpath needs "+arity+" arg(s) but got "+count+": "+raw);
+
+		if(arity == 0)
+			return raw;
+
+		int size = length;
+		for(int slot : slots)
+			size += args[slot] == null ? 4 : args[slot].length();
+
+		StringBuilder buf = new StringBuilder(size);
+		for(int i = 0; i < slots.length; i++)
+			buf.append(literals[i]).append(args[slots[i]]);
+		buf.append(literals[slots.length]);
+
+		return buf.toString();
+	}
+
+	/**
+	 * number of args needed
+	 *
+	 * @return arity
+	 */
+	public int getArity(){
+		return arity;
+	}
+
+	/**
+	 * original xpath
+	 */
+	@Override
+	public String toString(){
+		return raw;
+	}
+}
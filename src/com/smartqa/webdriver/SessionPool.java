@@ -0,0 +1,358 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.webdriver;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openqa.selenium.WebDriver;
+
+import com.smartqa.utils.WebDriverUtils;
+
+/**
+ * <p>
+ * Pool of warm browser sessions, owned by {@link Browser}.<br/>
+ * Instead of start a new browser for each scenario, a driver is leased from the pool
+ * and released back when scenario finished, its state is reset between leases.
+ * </p>
+ *
+ * <p>
+ * Pool is configured in config/smartqa.ini:
+ * <ul>
+ * 	<li>Session_Pool_Size - max alive sessions, 0 disables the pool (default)</li>
+ * 	<li>Session_Max_Use - retire a session after leased so many times</li>
+ * 	<li>Session_Max_Idle - retire a session idle longer than so many seconds</li>
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * Notice: browser can only clear cookies and storage of the page it is on, so reset clears them
+ * for the one origin scenario visited. Session visited several origins, like a login on SSO domain,
+ * is retired instead of reused. Origins are reported by engine after each step, see {@link #visit(WebDriver, String)},
+ * an origin only passed through by redirects in the middle of a step is not seen.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ */
+public class SessionPool {
+	private final static Logger LOG = LogManager.getLogger("SessionPool");
+
+	private final Browser browser;
+	private final int size;
+	private final int maxUse;
+	private final long maxIdle;
+	private final Semaphore permits;
+
+	//idle sessions by browser type, guarded by this
+	private final Map<String, LinkedList<Session>> idle = new HashMap<String, LinkedList<Session>>();
+	private int idleCount = 0;
+	private final Map<WebDriver, Session> leased = new ConcurrentHashMap<WebDriver, Session>();
+
+	private final AtomicLong leaseCount = new AtomicLong();
+	private final AtomicLong createCount = new AtomicLong();
+	private final AtomicLong retireCount = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();
+	private final AtomicLong maxWaitTime = new AtomicLong();
+
+	/**
+	 * constructor
+	 *
+	 * @param browser - browser to create new driver
+	 * @param size - max alive sessions, 0 means no pooling
+	 * @param maxUse - max lease times of one session
+	 * @param maxIdle - max idle time of one session, unit: second
+	 */
+	SessionPool(Browser browser, int size, int maxUse, long maxIdle){
+		this.browser = browser;
+		this.size = Math.max(size, 0);
+		this.maxUse = Math.max(maxUse, 1);
+		this.maxIdle = Math.max(maxIdle, 1) * 1000;
+		this.permits = new Semaphore(Math.max(this.size, 1), true);
+	}
+
+	/**
+	 * check pool enabled or not
+	 *
+	 * @return true if session will be reused
+	 */
+	public boolean isEnabled(){
+		return size > 0;
+	}
+
+	/**
+	 * lease a driver by browser type, block when all sessions are leased
+	 *
+	 * @param type - browser type like "Firefox", "Chrome", "IE"
+	 * @return WebDriver or null if browser not ready
+	 */
+	public WebDriver lease(String type){
+		if(!isEnabled())
+			return browser.getDriver(type);
+
+		long start = System.currentTimeMillis();
+		permits.acquireUninterruptibly();
+		long wait = System.currentTimeMillis() - start;
+		waitTime.addAndGet(wait);
+		if(wait > maxWaitTime.get())
+			maxWaitTime.set(wait);
+
+		try{
+			Session session = poll(key(type));
+			while(session != null && !WebDriverUtils.isAlive(session.driver)){
+				LOG.info("Session of "+session.type+" is not healthy, retire it");
+				retire(session);
+				session = poll(key(type));
+			}
+
+			if(session == null){
+				WebDriver driver = browser.getDriver(type);
+				if(driver == null){
+					permits.release();
+					return null;
+				}
+				session = new Session(key(type), driver);
+				createCount.incrementAndGet();
+			}
+
+			session.uses++;
+			leaseCount.incrementAndGet();
+			leased.put(session.driver, session);
+			return session.driver;
+		}catch(RuntimeException ex){
+			permits.release();
+			throw ex;
+		}
+	}
+
+	/**
+	 * release driver back to pool, reset its state for next lease
+	 *
+	 * @param driver
+	 */
+	public void release(WebDriver driver){
+		if(driver == null)
+			return;
+
+		Session session = leased.remove(driver);
+		if(session == null){
+			//not leased from pool, just close it
+			WebDriverUtils.closeWebDriver(driver);
+			return;
+		}
+
+		try{
+			if(session.uses >= maxUse)
+				retire(session);
+			else if(session.origins.size() > 1){
+				LOG.info("Session visited "+session.origins.size()+" origins, retire it to keep scenarios isolated");
+				retire(session);
+			}else if(!WebDriverUtils.resetWebDriver(driver, session.origins.isEmpty() ? null : session.origins.iterator().next()))
+				retire(session);
+			else
+				offer(session);
+		}finally{
+			permits.release();
+		}
+	}
+
+	/**
+	 * record origin of page a leased driver is on, to decide how it is reset on release
+	 *
+	 * @param driver - leased driver
+	 * @param url - page url
+	 */
+	public void visit(WebDriver driver, String url){
+		Session session = leased.get(driver);
+		String origin = WebDriverUtils.origin(url);
+		if(session != null && origin != null)
+			session.origins.add(origin);
+	}
+
+	/**
+	 * quit all idle sessions and log pool statistic
+	 */
+	public void shutdown(){
+		LinkedList<Session> sessions = new LinkedList<Session>();
+		synchronized(this){
+			for(LinkedList<Session> list : idle.values())
+				sessions.addAll(list);
+			idle.clear();
+			idleCount = 0;
+		}
+
+		for(Session session : sessions)
+			retire(session);
+
+		if(isEnabled())
+			LOG.info(toString());
+	}
+
+	/**
+	 * total time spent waiting for a free session, unit: ms
+	 *
+	 * @return lease wait time
+	 */
+	public long getWaitTime(){
+		return waitTime.get();
+	}
+
+	/**
+	 * ratio of leases served by an existing session
+	 *
+	 * @return reuse ratio between 0 and 1
+	 */
+	public double getReuseRatio(){
+		long leases = leaseCount.get();
+		if(leases == 0)
+			return 0;
+
+		return (double)(leases - createCount.get()) / leases;
+	}
+
+	/**
+	 * print pool statistic
+	 */
+	@Override
+	public String toString(){
+		StringBuilder buf = new StringBuilder();
+		buf.append("Session pool [size=").append(size).append("]\n");
+		buf.append("leases = ").append(leaseCount.get()).append("\n");
+		buf.append("created = ").append(createCount.get()).append("\n");
+		buf.append("retired = ").append(retireCount.get()).append("\n");
+		buf.append("reuse ratio = ").append(String.format("%.2f", getReuseRatio())).append("\n");
+		buf.append("lease wait = ").append(waitTime.get()).append("ms, max ").append(maxWaitTime.get()).append("ms\n");
+
+		return buf.toString();
+	}
+
+	/**
+	 * take a fresh idle session by type, expired sessions are retired on the way
+	 *
+	 * @param type
+	 * @return session or null
+	 */
+	private Session poll(String type){
+		LinkedList<Session> expired = new LinkedList<Session>();
+		Session session = null;
+		synchronized(this){
+			LinkedList<Session> list = idle.get(type);
+			while(list != null && !list.isEmpty()){
+				Session candidate = list.removeFirst();
+				idleCount--;
+				if(System.currentTimeMillis() - candidate.lastUsed > maxIdle)
+					expired.add(candidate);
+				else{
+					session = candidate;
+					break;
+				}
+			}
+
+			//no matched one, free a slot of other type for new session
+			if(session == null && leased.size() + idleCount >= size)
+				expired.add(evictEldest());
+		}
+
+		for(Session old : expired)
+			if(old != null)
+				retire(old);
+
+		return session;
+	}
+
+	/**
+	 * put session back to idle list
+	 *
+	 * @param session
+	 */
+	private synchronized void offer(Session session){
+		session.lastUsed = System.currentTimeMillis();
+		session.origins.clear();
+		LinkedList<Session> list = idle.get(session.type);
+		if(list == null){
+			list = new LinkedList<Session>();
+			idle.put(session.type, list);
+		}
+
+		//most recent used first, the warmest one get leased next
+		list.addFirst(session);
+		idleCount++;
+	}
+
+	/**
+	 * remove the longest idle session, must hold the lock
+	 *
+	 * @return session or null if nothing idle
+	 */
+	private Session evictEldest(){
+		LinkedList<Session> from = null;
+		for(LinkedList<Session> list : idle.values())
+			if(!list.isEmpty() && (from == null || list.getLast().lastUsed < from.getLast().lastUsed))
+				from = list;
+
+		if(from == null)
+			return null;
+
+		idleCount--;
+		return from.removeLast();
+	}
+
+	/**
+	 * quit session browser
+	 *
+	 * @param session
+	 */
+	private void retire(Session session){
+		retireCount.incrementAndGet();
+		WebDriverUtils.closeWebDriver(session.driver);
+	}
+
+	/**
+	 * pool key of browser type
+	 *
+	 * @param type
+	 * @return key
+	 */
+	private static String key(String type){
+		return type == null ? "default" : type.toLowerCase();
+	}
+
+	/**
+	 * one browser session in pool
+	 */
+	private static class Session{
+		final String type;
+		final WebDriver driver;
+		int uses = 0;
+		long lastUsed = System.currentTimeMillis();
+		//origins visited in current lease
+		final Set<String> origins = new HashSet<String>();
+
+		Session(String type, WebDriver driver){
+			this.type = type;
+			this.driver = driver;
+		}
+	}
+}
@@ -0,0 +1,656 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.webdriver;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.openqa.selenium.Alert;
+import org.openqa.selenium.By;
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.ImeHandler;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.NoAlertPresentException;
+import org.openqa.selenium.NoSuchElementException;
+import org.openqa.selenium.NoSuchWindowException;
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.Point;
+import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.UnsupportedCommandException;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.WebElement;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.smartqa.utils.CommonUtils;
+
+/**
+ * <p>
+ * Simulated web driver, no browser needed.<br/>
+ * It serves pages from an in-memory DOM, answers xpath lookups against it,
+ * and adds configurable latency and failures to every driver call,
+ * so engine, waits and reports can be load tested offline.
+ * </p>
+ *
+ * <p>
+ * Pages must be well formed XHTML, register them by {@link #page(String, String)},
+ * or use "Simulated" browser type configured in config/smartqa.ini:
+ * <ul>
+ * 	<li>Simulator_Page - XHTML file served for every url, or folder of &lt;host&gt;/&lt;path&gt;.html files with default.html fallback</li>
+ * 	<li>Simulator_Latency - mean latency of each driver call, unit: ms</li>
+ * 	<li>Simulator_Jitter - latency spread, unit: ms, used by uniform distribution</li>
+ * 	<li>Simulator_Distribution - uniform or exponential</li>
+ * 	<li>Simulator_Failure - probability each driver call fails, 0 to 1</li>
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * Notice: javascript is not run, executeScript throws UnsupportedCommandException so engine falls back to plain driver calls,
+ * like sleep instead of waiting page quiet. Frames and alerts are not simulated.
+ * Elements found before page load or refresh turn stale like in real browser.
+ * </p>
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+public class SimulatedDriver implements WebDriver, JavascriptExecutor, TakesScreenshot {
+	private final static String HANDLE = "simulated";
+	private final static String BLANK = "<html><head><title></title></head><body></body></html>";
+	//1x1 transparent png
+	private final static String SCREENSHOT = "iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mP8/5+hHgAHggJ/PchI7wAAAABJRU5ErkJggg==";
+
+	private final Map<String, String> pages = new ConcurrentHashMap<String, String>();
+	private final Random random = new Random();
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final XPath xpath = XPathFactory.newInstance().newXPath();
+
+	private File pageLib;
+	private long latency = 0;
+	private long jitter = 0;
+	private boolean exponential = false;
+	private double failure = 0;
+
+	private final List<String> history = new ArrayList<String>();
+	private int current = -1;
+	private Document document;
+	private String source = BLANK;
+	private final Map<String, Cookie> cookies = new LinkedHashMap<String, Cookie>();
+	private Dimension size = new Dimension(1280, 800);
+	private boolean closed = false;
+
+	/**
+	 * constructor, no latency and no failure, blank page for every url
+	 */
+	public SimulatedDriver(){
+		load("about:blank");
+	}
+
+	/**
+	 * serve pages from file or folder
+	 *
+	 * @param pageLib - XHTML file served for every url, or folder of pages
+	 * @return SimulatedDriver
+	 */
+	public SimulatedDriver pages(File pageLib){
+		this.pageLib = pageLib;
+		return this;
+	}
+
+	/**
+	 * register page content for url
+	 *
+	 * @param url
+	 * @param xhtml - well formed XHTML
+	 * @return SimulatedDriver
+	 */
+	public SimulatedDriver page(String url, String xhtml){
+		pages.put(url, xhtml);
+		return this;
+	}
+
+	/**
+	 * set latency of each driver call
+	 *
+	 * @param mean - mean latency, unit: ms
+	 * @param jitter - spread around mean for uniform distribution, unit: ms
+	 * @param exponential - true for exponential distribution, false for uniform
+	 * @return SimulatedDriver
+	 */
+	public SimulatedDriver latency(long mean, long jitter, boolean exponential){
+		this.latency = Math.max(mean, 0);
+		this.jitter = Math.max(jitter, 0);
+		this.exponential = exponential;
+		return this;
+	}
+
+	/**
+	 * set failure probability of each driver call
+	 *
+	 * @param probability - 0 to 1
+	 * @return SimulatedDriver
+	 */
+	public SimulatedDriver failure(double probability){
+		this.failure = probability;
+		return this;
+	}
+
+	/**
+	 * number of driver calls served
+	 *
+	 * @return call count
+	 */
+	public long getCallCount(){
+		return calls.get();
+	}
+
+	/**
+	 * number of failures injected
+	 *
+	 * @return failure count
+	 */
+	public long getFailureCount(){
+		return failures.get();
+	}
+
+	@Override
+	public void get(String url){
+		wire();
+		visit(url);
+	}
+
+	@Override
+	public String getCurrentUrl(){
+		wire();
+		return history.get(current);
+	}
+
+	@Override
+	public String getTitle(){
+		wire();
+		return text((Node)evaluate("//title", document, XPathConstants.NODE));
+	}
+
+	@Override
+	public List<WebElement> findElements(By by){
+		wire();
+		return find(by, document);
+	}
+
+	@Override
+	public WebElement findElement(By by){
+		List<WebElement> found = findElements(by);
+		if(found.isEmpty())
+			throw new NoSuchElementException("Unable to locate element: "+by);
+		return found.get(0);
+	}
+
+	@Override
+	public String getPageSource(){
+		wire();
+		return source;
+	}
+
+	@Override
+	public void close(){
+		wire();
+		closed = true;
+	}
+
+	@Override
+	public void quit(){
+		closed = true;
+	}
+
+	@Override
+	public Set<String> getWindowHandles(){
+		wire();
+		return closed ? new HashSet<String>() : Collections.singleton(HANDLE);
+	}
+
+	@Override
+	public String getWindowHandle(){
+		wire();
+		if(closed)
+			throw new NoSuchWindowException("Window is closed");
+		return HANDLE;
+	}
+
+	@Override
+	public TargetLocator switchTo(){
+		return new SimulatedLocator();
+	}
+
+	@Override
+	public Navigation navigate(){
+		return new SimulatedNavigation();
+	}
+
+	@Override
+	public Options manage(){
+		return new SimulatedOptions();
+	}
+
+	@Override
+	public Object executeScript(String script, Object... args){
+		wire();
+		throw new UnsupportedCommandException("Simulated driver runs no javascript");
+	}
+
+	@Override
+	public Object executeAsyncScript(String script, Object... args){
+		wire();
+		throw new UnsupportedCommandException("Simulated driver runs no javascript");
+	}
+
+	@Override
+	public <X> X getScreenshotAs(OutputType<X> target){
+		wire();
+		return target.convertFromBase64Png(SCREENSHOT);
+	}
+
+	/**
+	 * simulate one round trip to browser: wait latency, maybe fail
+	 */
+	void wire(){
+		calls.incrementAndGet();
+		long wait;
+		synchronized(random){
+			if(exponential)
+				wait = (long)(-Math.log(1 - random.nextDouble()) * latency);
+			else
+				wait = latency - jitter + (jitter > 0 ? (long)(random.nextDouble() * 2 * jitter) : 0);
+
+			if(failure > 0 && random.nextDouble() < failure){
+				failures.incrementAndGet();
+				throw new WebDriverException("Simulated driver failure");
+			}
+		}
+
+		if(wait > 0)
+			CommonUtils.waiting(wait);
+	}
+
+	/**
+	 * element of page loaded now, every load parses a new document
+	 *
+	 * @param element - DOM element
+	 * @return false if page was left or reloaded since element was found
+	 */
+	boolean isAttached(Element element){
+		return element.getOwnerDocument() == document;
+	}
+
+	/**
+	 * find elements by locator under context node
+	 *
+	 * @param by - xpath, id, name, tag name or class name locator
+	 * @param context - node to search from
+	 * @return found elements
+	 */
+	List<WebElement> find(By by, Node context){
+		NodeList nodes = (NodeList)evaluate(toXPath(by), context, XPathConstants.NODESET);
+		List<WebElement> list = new ArrayList<WebElement>(nodes.getLength());
+		for(int i = 0; i < nodes.getLength(); i++)
+			if(nodes.item(i) instanceof Element)
+				list.add(new SimulatedElement(this, (Element)nodes.item(i)));
+		return list;
+	}
+
+	/**
+	 * open link relative to current page
+	 *
+	 * @param href
+	 */
+	void follow(String href){
+		try{
+			visit(new URI(history.get(current)).resolve(href).toString());
+		}catch(Exception ex){
+			visit(href);
+		}
+	}
+
+	/**
+	 * text content with whitespace collapsed, like visible text
+	 *
+	 * @param node
+	 * @return text or empty string
+	 */
+	static String text(Node node){
+		if(node == null)
+			return "";
+		return node.getTextContent().replaceAll("\\s+", " ").trim();
+	}
+
+	/**
+	 * evaluate xpath in DOM
+	 */
+	private Object evaluate(String expression, Node context, javax.xml.namespace.QName type){
+		try{
+			return xpath.evaluate(expression, context, type);
+		}catch(XPathExpressionException ex){
+			throw new WebDriverException("Invalid xpath: "+expression, ex);
+		}
+	}
+
+	/**
+	 * convert locator to xpath, selenium prints locator as "By.xpath: expression"
+	 *
+	 * @param by
+	 * @return xpath
+	 */
+	private static String toXPath(By by){
+		String locator = by.toString();
+		int split = locator.indexOf(": ");
+		if(split < 0)
+			throw new WebDriverException("Unsupported locator: "+locator);
+
+		String type = locator.substring(0, split);
+		String value = locator.substring(split + 2);
+		if("By.xpath".equals(type))
+			return value;
+		if("By.id".equals(type))
+			return ".//*[@id='"+value+"']";
+		if("By.name".equals(type))
+			return ".//*[@name='"+value+"']";
+		if("By.tagName".equals(type))
+			return ".//"+value;
+		if("By.className".equals(type))
+			return ".//*[contains(concat(' ', normalize-space(@class), ' '), ' "+value+" ')]";
+
+		throw new WebDriverException("Unsupported locator: "+locator);
+	}
+
+	/**
+	 * go to url as a new history entry
+	 */
+	private void visit(String url){
+		while(history.size() > current + 1)
+			history.remove(history.size() - 1);
+		history.add(url);
+		current++;
+		load(url);
+	}
+
+	/**
+	 * parse page of url into DOM
+	 */
+	private void load(String url){
+		if(current < 0){
+			history.add(url);
+			current = 0;
+		}
+
+		source = lookup(url);
+		try{
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(false);
+			factory.setValidating(false);
+			factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+			DocumentBuilder builder = factory.newDocumentBuilder();
+			document = builder.parse(new ByteArrayInputStream(source.getBytes("utf-8")));
+		}catch(Exception ex){
+			throw new WebDriverException("Simulated page of "+url+" is not well formed XHTML: "+ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * find page content of url
+	 */
+	private String lookup(String url){
+		String page = pages.get(url);
+		if(page != null)
+			return page;
+		if(pageLib == null)
+			return BLANK;
+
+		try{
+			if(pageLib.isFile())
+				return FileUtils.readFileToString(pageLib, "utf-8");
+
+			URI uri = new URI(url);
+			String path = uri.getPath() == null || uri.getPath().length() <= 1 ? "/index" : uri.getPath();
+			File file = new File(pageLib, uri.getHost()+path+".html");
+			if(!file.isFile())
+				file = new File(pageLib, "default.html");
+			if(file.isFile())
+				return FileUtils.readFileToString(file, "utf-8");
+		}catch(Exception ex){
+			//unknown url serves blank page
+		}
+
+		return BLANK;
+	}
+
+	/**
+	 * navigation over history
+	 */
+	private class SimulatedNavigation implements Navigation{
+		@Override
+		public void back(){
+			wire();
+			if(current > 0)
+				load(history.get(--current));
+		}
+
+		@Override
+		public void forward(){
+			wire();
+			if(current < history.size() - 1)
+				load(history.get(++current));
+		}
+
+		@Override
+		public void to(String url){
+			get(url);
+		}
+
+		@Override
+		public void to(URL url){
+			get(url.toString());
+		}
+
+		@Override
+		public void refresh(){
+			wire();
+			load(history.get(current));
+		}
+	}
+
+	/**
+	 * only one window, no frame and no alert
+	 */
+	private class SimulatedLocator implements TargetLocator{
+		@Override
+		public WebDriver frame(int index){
+			return SimulatedDriver.this;
+		}
+
+		@Override
+		public WebDriver frame(String nameOrId){
+			return SimulatedDriver.this;
+		}
+
+		@Override
+		public WebDriver frame(WebElement frameElement){
+			return SimulatedDriver.this;
+		}
+
+		@Override
+		public WebDriver window(String nameOrHandle){
+			if(!HANDLE.equals(nameOrHandle))
+				throw new NoSuchWindowException("No window: "+nameOrHandle);
+			return SimulatedDriver.this;
+		}
+
+		@Override
+		public WebDriver defaultContent(){
+			return SimulatedDriver.this;
+		}
+
+		@Override
+		public WebElement activeElement(){
+			return findElement(By.xpath("//body"));
+		}
+
+		@Override
+		public Alert alert(){
+			wire();
+			throw new NoAlertPresentException("Simulated driver has no alert");
+		}
+	}
+
+	/**
+	 * cookies, timeouts and window of simulated browser
+	 */
+	private class SimulatedOptions implements Options{
+		@Override
+		public void addCookie(Cookie cookie){
+			cookies.put(cookie.getName(), cookie);
+		}
+
+		@Override
+		public void deleteCookieNamed(String name){
+			cookies.remove(name);
+		}
+
+		@Override
+		public void deleteCookie(Cookie cookie){
+			cookies.remove(cookie.getName());
+		}
+
+		@Override
+		public void deleteAllCookies(){
+			wire();
+			cookies.clear();
+		}
+
+		@Override
+		public Set<Cookie> getCookies(){
+			wire();
+			return new HashSet<Cookie>(cookies.values());
+		}
+
+		@Override
+		public Cookie getCookieNamed(String name){
+			return cookies.get(name);
+		}
+
+		@Override
+		public Timeouts timeouts(){
+			return new Timeouts(){
+				@Override
+				public Timeouts implicitlyWait(long time, TimeUnit unit){
+					return this;
+				}
+
+				@Override
+				public Timeouts setScriptTimeout(long time, TimeUnit unit){
+					return this;
+				}
+
+				@Override
+				public Timeouts pageLoadTimeout(long time, TimeUnit unit){
+					return this;
+				}
+			};
+		}
+
+		@Override
+		public ImeHandler ime(){
+			//no input method engine available
+			return new ImeHandler(){
+				@Override
+				public List<String> getAvailableEngines(){
+					return new ArrayList<String>();
+				}
+
+				@Override
+				public String getActiveEngine(){
+					return "";
+				}
+
+				@Override
+				public boolean isActivated(){
+					return false;
+				}
+
+				@Override
+				public void deactivate(){
+				}
+
+				@Override
+				public void activateEngine(String engine){
+				}
+			};
+		}
+
+		@Override
+		public Window window(){
+			return new Window(){
+				@Override
+				public void setSize(Dimension target){
+					size = target;
+				}
+
+				@Override
+				public void setPosition(Point target){
+				}
+
+				@Override
+				public Dimension getSize(){
+					return size;
+				}
+
+				@Override
+				public Point getPosition(){
+					return new Point(0, 0);
+				}
+
+				@Override
+				public void maximize(){
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2012 Software Freedom Conservancy.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package com.smartqa.webdriver;
+
+import java.util.List;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.NoSuchElementException;
+import org.openqa.selenium.Point;
+import org.openqa.selenium.StaleElementReferenceException;
+import org.openqa.selenium.WebElement;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Web element of {@link SimulatedDriver}, backed by DOM element.<br/>
+ * It turns stale when driver loads another page or refreshes, like in real browser.
+ *
+ * @version 1.0
+ * @author antren
+ *
+ */
+class SimulatedElement implements WebElement {
+	private final SimulatedDriver driver;
+	private final Element element;
+
+	SimulatedElement(SimulatedDriver driver, Element element){
+		this.driver = driver;
+		this.element = element;
+	}
+
+	/**
+	 * click follows link href, selects option or toggles checkbox
+	 */
+	@Override
+	public void click(){
+		touch();
+		String tag = tag();
+		if("option".equals(tag)){
+			Node select = element.getParentNode();
+			if(select instanceof Element && !((Element)select).hasAttribute("multiple")){
+				NodeList options = ((Element)select).getElementsByTagName("option");
+				for(int i = 0; i < options.getLength(); i++)
+					((Element)options.item(i)).removeAttribute("selected");
+			}
+			element.setAttribute("selected", "selected");
+		}else if("input".equals(tag) && ("checkbox".equals(element.getAttribute("type")) || "radio".equals(element.getAttribute("type")))){
+			if(element.hasAttribute("checked"))
+				element.removeAttribute("checked");
+			else
+				element.setAttribute("checked", "checked");
+		}else{
+			Element link = closest("a");
+			if(link != null && link.hasAttribute("href") && !link.getAttribute("href").startsWith("#")
+					&& !link.getAttribute("href").startsWith("javascript:"))
+				driver.follow(link.getAttribute("href"));
+		}
+	}
+
+	@Override
+	public void submit(){
+		touch();
+	}
+
+	@Override
+	public void sendKeys(CharSequence... keys){
+		touch();
+		StringBuilder buf = new StringBuilder(element.getAttribute("value"));
+		for(CharSequence key : keys)
+			buf.append(key);
+		element.setAttribute("value", buf.toString());
+	}
+
+	@Override
+	public void clear(){
+		touch();
+		element.removeAttribute("value");
+	}
+
+	@Override
+	public String getTagName(){
+		touch();
+		return tag();
+	}
+
+	@Override
+	public String getAttribute(String name){
+		touch();
+		if(("selected".equals(name) || "checked".equals(name) || "disabled".equals(name) || "multiple".equals(name)))
+			return element.hasAttribute(name) ? "true" : null;
+		if("value".equals(name) && !element.hasAttribute(name) && "option".equals(tag()))
+			return SimulatedDriver.text(element);
+		return element.hasAttribute(name) ? element.getAttribute(name) : null;
+	}
+
+	@Override
+	public boolean isSelected(){
+		touch();
+		return element.hasAttribute("selected") || element.hasAttribute("checked");
+	}
+
+	@Override
+	public boolean isEnabled(){
+		touch();
+		return !element.hasAttribute("disabled");
+	}
+
+	@Override
+	public String getText(){
+		touch();
+		return SimulatedDriver.text(element);
+	}
+
+	@Override
+	public List<WebElement> findElements(By by){
+		touch();
+		return driver.find(by, element);
+	}
+
+	@Override
+	public WebElement findElement(By by){
+		List<WebElement> found = findElements(by);
+		if(found.isEmpty())
+			throw new NoSuchElementException("Unable to locate element: "+by);
+		return found.get(0);
+	}
+
+	/**
+	 * hidden by hidden attribute, display:none style or input type hidden, on itself or ancestors
+	 */
+	@Override
+	public boolean isDisplayed(){
+		touch();
+		if("input".equals(tag()) && "hidden".equals(element.getAttribute("type")))
+			return false;
+
+		for(Node node = element; node instanceof Element; node = node.getParentNode()){
+			Element current = (Element)node;
+			String style = current.getAttribute("style").replace(" ", "").toLowerCase();
+			if(current.hasAttribute("hidden") || style.contains("display:none") || style.contains("visibility:hidden"))
+				return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public Point getLocation(){
+		touch();
+		return new Point(0, 0);
+	}
+
+	@Override
+	public Dimension getSize(){
+		touch();
+		return new Dimension(100, 20);
+	}
+
+	@Override
+	public String getCssValue(String propertyName){
+		touch();
+		return "";
+	}
+
+	/**
+	 * one round trip to browser, element must still be on current page
+	 */
+	private void touch(){
+		driver.wire();
+		if(!driver.isAttached(element))
+			throw new StaleElementReferenceException("Element is not attached to the page document");
+	}
+
+	private String tag(){
+		return element.getTagName().toLowerCase();
+	}
+
+	/**
+	 * nearest ancestor or self with tag name
+	 */
+	private Element closest(String tag){
+		for(Node node = element; node instanceof Element; node = node.getParentNode())
+			if(tag.equalsIgnoreCase(((Element)node).getTagName()))
+				return (Element)node;
+		return null;
+	}
+}